@@ -0,0 +1,85 @@
+package parse.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Synthetic documents of about one MB each, plus the spiegel.txt page from the tests.
+ */
+public class Corpus {
+
+	private static final int SIZE = 1 << 20;
+
+	public static String get(String name) {
+		switch (name) {
+			case "deep":
+				return deep();
+			case "attributes":
+				return attributes();
+			case "text":
+				return text();
+			case "comments":
+				return comments();
+			case "spiegel":
+				return spiegel();
+			default:
+				throw new IllegalArgumentException("unknown corpus: " + name);
+		}
+	}
+
+	private static String deep() {
+		StringBuilder sb = new StringBuilder("<html>");
+		while (sb.length() < SIZE) {
+			for (int i = 0; i < 200; i++) {
+				sb.append("<div class=\"level\">x");
+			}
+			for (int i = 0; i < 200; i++) {
+				sb.append("</div>");
+			}
+		}
+		return sb.append("</html>").toString();
+	}
+
+	private static String attributes() {
+		StringBuilder sb = new StringBuilder("<html>");
+		for (int i = 0; sb.length() < SIZE; i++) {
+			sb.append("<a href=\"https://example.com/articles/").append(i)
+					.append("\" class=\"link teaser-link js-track\" id=\"a").append(i)
+					.append("\" data-position=\"").append(i % 17)
+					.append("\" title=\"Article number ").append(i)
+					.append("\" rel=\"nofollow\" target=\"_blank\">").append(i).append("</a>\n");
+		}
+		return sb.append("</html>").toString();
+	}
+
+	private static String text() {
+		StringBuilder sb = new StringBuilder("<html><body>");
+		while (sb.length() < SIZE) {
+			sb.append("<p>");
+			for (int i = 0; i < 20; i++) {
+				sb.append("Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor. ");
+			}
+			sb.append("</p>\n");
+		}
+		return sb.append("</body></html>").toString();
+	}
+
+	private static String comments() {
+		StringBuilder sb = new StringBuilder("<html>");
+		while (sb.length() < SIZE) {
+			sb.append("<!-- generated block, <b>markup</b> inside comments is ignored - really -->\n");
+			sb.append("<span>item</span>\n");
+		}
+		return sb.append("</html>").toString();
+	}
+
+	private static String spiegel() {
+		try (InputStream in = Corpus.class.getResourceAsStream("spiegel.txt")) {
+			return new String(in.readAllBytes(), StandardCharsets.ISO_8859_1);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
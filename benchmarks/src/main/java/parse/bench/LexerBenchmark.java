@@ -0,0 +1,65 @@
+package parse.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import parse.HtmlLexer;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LexerBenchmark {
+
+	@Param({"deep", "attributes", "text", "comments", "spiegel"})
+	public String corpus;
+
+	private String doc;
+
+	@Setup
+	public void setup() {
+		doc = Corpus.get(corpus);
+	}
+
+	/**
+	 * Reports tokens/sec next to documents/sec.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Counters {
+		public long tokens;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			tokens = 0;
+		}
+	}
+
+	@Benchmark
+	public int lex(Counters counters) {
+		HtmlLexer lexer = new HtmlLexer(doc);
+		int n = 0;
+		while (lexer.peekType() != HtmlLexer.TokenType.EOF) {
+			lexer.advance();
+			lexer.release();
+			n++;
+		}
+		counters.tokens += n;
+		return n;
+	}
+}
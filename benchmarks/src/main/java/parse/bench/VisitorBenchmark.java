@@ -0,0 +1,63 @@
+package parse.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import parse.AttributeNode;
+import parse.DocNode;
+import parse.ElementNode;
+import parse.HtmlParser;
+import parse.HtmlVisitor;
+import parse.TextNode;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VisitorBenchmark {
+
+	@Param({"deep", "attributes", "text", "comments", "spiegel"})
+	public String corpus;
+
+	private DocNode docNode;
+
+	@Setup
+	public void setup() {
+		docNode = new HtmlParser(Corpus.get(corpus)).parseDoc();
+	}
+
+	@Benchmark
+	public int accept() {
+		int[] count = new int[1];
+		docNode.accept(new HtmlVisitor() {
+			@Override
+			public void visitElement(ElementNode elementNode) {
+				count[0]++;
+			}
+
+			@Override
+			public void visitText(TextNode textNode) {
+				count[0]++;
+			}
+
+			@Override
+			public void visitAttribute(AttributeNode attributeNode) {
+				count[0]++;
+			}
+		});
+		return count[0];
+	}
+}
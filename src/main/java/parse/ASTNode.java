@@ -5,6 +5,14 @@ public abstract class ASTNode {
 	private int start;
 	private int end;
 	private ElementNode parent;
+	// the document of a top-level node, whose index changes below it drop
+	DocNode document;
+	// created by the caller rather than parsed from a source
+	boolean created;
+	// children of this node or of a descendant were replaced since parsing
+	boolean changed;
+	// part of a document handed out by a ParseCache to several callers
+	boolean shared;
 	
 	public ASTNode(ElementNode parent) {
 		this.parent = parent;
@@ -20,6 +28,29 @@ public abstract class ASTNode {
 		this.parent = parent;
 	}
 
+	void checkNotShared() {
+		if (shared) {
+			throw new UnsupportedOperationException("shared documents cannot be changed");
+		}
+	}
+
+	void markChanged() {
+		ASTNode node = this;
+		node.changed = true;
+		for (; node.getParent() != null; node = node.getParent()) {
+			node.getParent().changed = true;
+		}
+		if (node.document != null) {
+			node.document.dropIndex();
+		}
+	}
+
+	/**
+	 * Moves the node's own offsets after an edit of the source, children are moved by the caller.
+	 */
+	void shift(int delta, CharSequence source) {
+	}
+
 	public abstract int start();
 	public abstract int end();
 }
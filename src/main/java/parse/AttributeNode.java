@@ -4,6 +4,8 @@ public class AttributeNode extends ASTNode {
 
 	private final HtmlLexer.Token name;
 	private final HtmlLexer.Token value;
+	// unquoted value, sliced on first access
+	private String unquoted;
 
 	public AttributeNode(HtmlLexer.Token name, HtmlLexer.Token value) {
 		super(null);
@@ -12,11 +14,30 @@ public class AttributeNode extends ASTNode {
 	}
 
 	public String getName() {
-		return name.val;
+		return name.val();
+	}
+
+	HtmlLexer.Token getNameToken() {
+		return name;
+	}
+
+	HtmlLexer.Token getValueToken() {
+		return value;
 	}
 
 	public String getValue() {
-		return value == null ? null : value.val.substring(1, value.val.length() - 1);
+		if (unquoted == null && value != null) {
+			unquoted = value.slice(value.start + 1, value.end - 1);
+		}
+		return unquoted;
+	}
+
+	@Override
+	void shift(int delta, CharSequence source) {
+		name.shift(delta, source);
+		if (value != null) {
+			value.shift(delta, source);
+		}
 	}
 
 	@Override
@@ -31,7 +52,7 @@ public class AttributeNode extends ASTNode {
 
 	@Override
 	public int end() {
-		return value.end;
+		return value != null ? value.end : name.end;
 	}
 
 	@Override
@@ -0,0 +1,120 @@
+package parse;
+
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Parses many documents concurrently on an executor. At most {@code parallelism} documents are in
+ * flight, further submissions block the caller until a slot is free. Each document completes its own
+ * future, parse errors complete it exceptionally with the {@link AssertionError} of the parser.
+ * In-memory and mapped documents are parsed by pooled parsers, so lexer buffers are reused.
+ */
+public class BatchParser {
+
+	private final Executor executor;
+	private final Semaphore permits;
+	private final Queue<HtmlParser> parsers = new ConcurrentLinkedQueue<>();
+
+	public BatchParser() {
+		this(ForkJoinPool.commonPool(), Runtime.getRuntime().availableProcessors());
+	}
+
+	public BatchParser(Executor executor, int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+		}
+		this.executor = executor;
+		this.permits = new Semaphore(parallelism);
+	}
+
+	public CompletableFuture<DocNode> submit(CharSequence s) {
+		return submit(() -> parsePooled(s));
+	}
+
+	/**
+	 * Maps the file like {@link HtmlParser#mapFile(Path)}, offsets are byte offsets.
+	 */
+	public CompletableFuture<DocNode> submit(Path path) {
+		return submit(() -> parsePooled(HtmlParser.map(path)));
+	}
+
+	/**
+	 * Streams the channel, which stays open and owned by the caller.
+	 */
+	public CompletableFuture<DocNode> submit(ReadableByteChannel channel, Charset charset) {
+		return submit(() -> new HtmlParser(channel, charset).parseDoc());
+	}
+
+	/**
+	 * Submits the documents in order, blocking while the batch is saturated.
+	 */
+	public List<CompletableFuture<DocNode>> submitAll(Iterable<? extends CharSequence> docs) {
+		List<CompletableFuture<DocNode>> futures = new ArrayList<>();
+		for (CharSequence doc : docs) {
+			futures.add(submit(doc));
+		}
+		return futures;
+	}
+
+	public List<CompletableFuture<DocNode>> submitPaths(Iterable<Path> paths) {
+		List<CompletableFuture<DocNode>> futures = new ArrayList<>();
+		for (Path path : paths) {
+			futures.add(submit(path));
+		}
+		return futures;
+	}
+
+	private DocNode parsePooled(CharSequence s) {
+		HtmlParser parser = parsers.poll();
+		if (parser == null) {
+			parser = new HtmlParser();
+		}
+		try {
+			return parser.reset(s).parseDoc();
+		} finally {
+			// don't keep the document reachable from the pool
+			parsers.add(parser.reset(""));
+		}
+	}
+
+	private interface Job {
+		DocNode run() throws Exception;
+	}
+
+	private CompletableFuture<DocNode> submit(Job job) {
+		CompletableFuture<DocNode> future = new CompletableFuture<>();
+		try {
+			permits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			future.completeExceptionally(e);
+			return future;
+		}
+
+		try {
+			executor.execute(() -> {
+				try {
+					future.complete(job.run());
+				} catch (Throwable e) {
+					future.completeExceptionally(e);
+				} finally {
+					permits.release();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			permits.release();
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+}
@@ -0,0 +1,81 @@
+package parse;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Views UTF-8 (or ASCII) bytes as chars for the lexer, which only branches on ASCII delimiters.
+ * Offsets are byte offsets, and {@link #subSequence(int, int)} decodes the bytes in that range,
+ * so its length may differ from the byte count.
+ */
+class ByteCharSequence implements CharSequence {
+
+	private static final long ONES = 0x0101010101010101L;
+	private static final long HIGHS = 0x8080808080808080L;
+
+	private final ByteBuffer bytes;
+	// same bytes, read 8 at a time with the lowest offset in the lowest byte
+	private final ByteBuffer words;
+
+	ByteCharSequence(ByteBuffer bytes) {
+		this.bytes = bytes;
+		this.words = bytes.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * The bytes between the offsets, sharing the underlying buffer.
+	 */
+	ByteBuffer bytes(int from, int to) {
+		ByteBuffer slice = bytes.duplicate();
+		slice.limit(to).position(from);
+		return slice;
+	}
+
+	/**
+	 * Searches a word at a time: xor-ing with the repeated byte zeroes matching bytes,
+	 * and (x - 0x01..) & ~x & 0x80.. flags the lowest zero byte of x.
+	 */
+	int indexOf(byte b, int from) {
+		int limit = bytes.limit();
+		long pattern = (b & 0xffL) * ONES;
+		int j = from;
+		for (; j + 8 <= limit; j += 8) {
+			long x = words.getLong(j) ^ pattern;
+			long found = (x - ONES) & ~x & HIGHS;
+			if (found != 0) {
+				return j + (Long.numberOfTrailingZeros(found) >>> 3);
+			}
+		}
+		for (; j < limit; j++) {
+			if (bytes.get(j) == b) {
+				return j;
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public int length() {
+		return bytes.limit();
+	}
+
+	@Override
+	public char charAt(int index) {
+		return (char) (bytes.get(index) & 0xff);
+	}
+
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		byte[] dst = new byte[end - start];
+		ByteBuffer view = bytes.duplicate();
+		view.position(start);
+		view.get(dst);
+		return new String(dst, StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public String toString() {
+		return subSequence(0, length()).toString();
+	}
+}
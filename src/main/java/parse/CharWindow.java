@@ -0,0 +1,110 @@
+package parse;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+/**
+ * Sliding window over the chars of a Reader, addressed by absolute offsets.
+ * Chars before the mark may be dropped whenever more input is read.
+ */
+class CharWindow implements CharSequence {
+
+	private final Reader reader;
+	private char[] buf;
+	// absolute offset of buf[0]
+	private int offset = 0;
+	private int limit = 0;
+	private int mark = 0;
+	private boolean eof = false;
+
+	CharWindow(Reader reader, int size) {
+		this.reader = reader;
+		this.buf = new char[size];
+	}
+
+	/**
+	 * Reads until the char at the given absolute offset is available.
+	 *
+	 * @return false if the input ends before that offset
+	 */
+	boolean fill(int pos) {
+		while (pos >= offset + limit) {
+			if (eof) {
+				return false;
+			}
+			if (limit == buf.length) {
+				makeRoom();
+			}
+			try {
+				int n = reader.read(buf, limit, buf.length - limit);
+				if (n == -1) {
+					eof = true;
+				} else {
+					limit += n;
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Searches for a char starting at the given absolute offset, reading as far as necessary.
+	 */
+	int indexOf(char c, int from) {
+		int j = from;
+		while (fill(j)) {
+			for (int end = offset + limit; j < end; j++) {
+				if (buf[j - offset] == c) {
+					return j;
+				}
+			}
+		}
+		return -1;
+	}
+
+	private void makeRoom() {
+		int drop = mark - offset;
+		if (drop > 0) {
+			System.arraycopy(buf, drop, buf, 0, limit - drop);
+			limit -= drop;
+			offset = mark;
+		}
+		if (limit == buf.length) {
+			buf = Arrays.copyOf(buf, buf.length * 2);
+		}
+	}
+
+	/**
+	 * Allows chars before the given absolute offset to be dropped.
+	 */
+	void mark(int pos) {
+		mark = Math.max(mark, pos);
+	}
+
+	/**
+	 * Absolute offset after the last char read so far.
+	 */
+	@Override
+	public int length() {
+		return offset + limit;
+	}
+
+	@Override
+	public char charAt(int index) {
+		return buf[index - offset];
+	}
+
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		return new String(buf, start - offset, end - start);
+	}
+
+	@Override
+	public String toString() {
+		return new String(buf, 0, limit);
+	}
+}
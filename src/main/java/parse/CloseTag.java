@@ -15,13 +15,28 @@ public class CloseTag extends ASTNode {
 	}
 
 	public String getName() {
-		return name.val;
+		return name.val();
+	}
+
+	Token getNameToken() {
+		return name;
+	}
+
+	boolean hasName(Token tagName) {
+		return name.contentEquals(tagName);
 	}
 
 	public int getStart() {
 		return open.start;
 	}
 
+	@Override
+	void shift(int delta, CharSequence source) {
+		open.shift(delta, source);
+		name.shift(delta, source);
+		close.shift(delta, source);
+	}
+
 	@Override
 	public void accept(HtmlVisitor visitor) {
 
@@ -0,0 +1,95 @@
+package parse;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Elements of a document by id, tag name and class, each list in document order. Built in one
+ * iterative walk, so deep documents don't overflow the stack, and not modified afterwards.
+ */
+class DocIndex {
+
+	private final Map<String, List<ElementNode>> ids = new HashMap<>();
+	private final Map<String, List<ElementNode>> tags = new HashMap<>();
+	private final Map<String, List<ElementNode>> classes = new HashMap<>();
+
+	DocIndex(List<ASTNode> roots) {
+		Deque<ASTNode> stack = new ArrayDeque<>();
+		push(stack, roots);
+		while (!stack.isEmpty()) {
+			ASTNode node = stack.pop();
+			if (node instanceof ElementNode) {
+				ElementNode element = (ElementNode) node;
+				add(element);
+				push(stack, element.getChildren());
+			}
+		}
+	}
+
+	private static void push(Deque<ASTNode> stack, List<ASTNode> children) {
+		for (int c = children.size() - 1; c >= 0; c--) {
+			stack.push(children.get(c));
+		}
+	}
+
+	private void add(ElementNode element) {
+		tags.computeIfAbsent(element.getTagName(), k -> new ArrayList<>()).add(element);
+
+		String id = element.getAttributeValue("id");
+		if (id != null) {
+			ids.computeIfAbsent(id, k -> new ArrayList<>()).add(element);
+		}
+
+		String classNames = element.getAttributeValue("class");
+		if (classNames != null) {
+			int from = 0;
+			int length = classNames.length();
+			while (from < length) {
+				while (from < length && classNames.charAt(from) <= ' ') {
+					from++;
+				}
+				int to = from;
+				while (to < length && classNames.charAt(to) > ' ') {
+					to++;
+				}
+				if (to > from) {
+					List<ElementNode> list = classes.computeIfAbsent(classNames.substring(from, to), k -> new ArrayList<>());
+					// the same class twice on one element counts once
+					if (list.isEmpty() || list.get(list.size() - 1) != element) {
+						list.add(element);
+					}
+				}
+				from = to;
+			}
+		}
+	}
+
+	ElementNode byId(String id) {
+		List<ElementNode> list = ids.get(id);
+		return list == null ? null : list.get(0);
+	}
+
+	/**
+	 * All elements with the id, ids are not necessarily unique.
+	 */
+	List<ElementNode> allById(String id) {
+		return unmodifiable(ids.get(id));
+	}
+
+	List<ElementNode> byTag(String tag) {
+		return unmodifiable(tags.get(tag));
+	}
+
+	List<ElementNode> byClass(String className) {
+		return unmodifiable(classes.get(className));
+	}
+
+	private static List<ElementNode> unmodifiable(List<ElementNode> list) {
+		return list == null ? Collections.emptyList() : Collections.unmodifiableList(list);
+	}
+}
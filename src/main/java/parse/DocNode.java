@@ -4,6 +4,10 @@ import java.util.List;
 
 public class DocNode extends ASTNode {
 	private List<ASTNode> children;
+	// built on the first lookup, dropped when the children or any subtree change
+	private volatile DocIndex index;
+	// what the nodes slice their values from, null if they slice from the source directly
+	SharedSource source;
 	
 	public DocNode() {
 		super(null);
@@ -31,6 +35,56 @@ public class DocNode extends ASTNode {
 	}
 
 	public void setChildren(List<ASTNode> children) {
+		checkNotShared();
 		this.children = children;
+		for (ASTNode child : children) {
+			child.document = this;
+		}
+		this.index = null;
+	}
+
+	void dropIndex() {
+		index = null;
+	}
+
+	/**
+	 * @return the first element with the given id, or null
+	 */
+	public ElementNode getElementById(String id) {
+		return index().byId(id);
+	}
+
+	/**
+	 * @return the elements with the given tag name in document order
+	 */
+	public List<ElementNode> getElementsByTagName(String tagName) {
+		return index().byTag(tagName);
+	}
+
+	/**
+	 * @return the elements having the given class in document order
+	 */
+	public List<ElementNode> getElementsByClassName(String className) {
+		return index().byClass(className);
+	}
+
+	/**
+	 * All elements matching the CSS selector in document order, see {@link Selector}.
+	 */
+	public List<ElementNode> select(String css) {
+		return Selector.compile(css).select(this);
+	}
+
+	/**
+	 * Lookups build the index on first use. Concurrent first lookups may each build one,
+	 * they are equal and the last one wins.
+	 */
+	DocIndex index() {
+		DocIndex index = this.index;
+		if (index == null) {
+			index = new DocIndex(children);
+			this.index = index;
+		}
+		return index;
 	}
 }
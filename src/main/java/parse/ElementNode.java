@@ -6,14 +6,23 @@ import java.util.List;
 import java.util.Optional;
 
 import parse.HtmlLexer.Token;
+import parse.HtmlLexer.TokenType;
 
 public class ElementNode extends ASTNode {
-	private final Token open;
-	private final Token name;
-	private final List<AttributeNode> attribs;
+	// elements with more attributes get a hash index for lookups
+	private static final int INDEX_THRESHOLD = 8;
+
+	private Token open;
+	private Token name;
+	private List<AttributeNode> attribs;
 	private List<ASTNode> children = Collections.emptyList();
-	private final Token close;
+	private Token close;
 	private CloseTag closeTag;
+	// position + 1 of the first attribute per name, open addressing by name hash
+	private int[] attribIndex;
+	// set for lazily parsed elements, start tag and children are null until first accessed
+	private LazyTree lazy;
+	private int record;
 
 	public ElementNode(ElementNode parent,
 					   Token open,
@@ -21,7 +30,17 @@ public class ElementNode extends ASTNode {
 					   List<AttributeNode> attribs,
 					   Token close) {
 		super(parent);
+		setStartTag(open, name, attribs, close);
+	}
+
+	ElementNode(ElementNode parent, LazyTree lazy, int record) {
+		super(parent);
+		this.lazy = lazy;
+		this.record = record;
+		this.children = null;
+	}
 
+	private void setStartTag(Token open, Token name, List<AttributeNode> attribs, Token close) {
 		this.open = open;
 		this.name = name;
 		this.attribs = attribs;
@@ -30,44 +49,198 @@ public class ElementNode extends ASTNode {
 		for (AttributeNode attrib : this.attribs) {
 			attrib.setParent(this);
 		}
+		this.attribIndex = attribs.size() > INDEX_THRESHOLD ? index(attribs) : null;
+	}
+
+	/**
+	 * Parses the start tag of a lazy element.
+	 */
+	private void startTag() {
+		if (name == null) {
+			ElementNode tag = lazy.startTag(record);
+			setStartTag(tag.open, tag.name, tag.attribs, tag.close);
+		}
+	}
+
+	private static int[] index(List<AttributeNode> attribs) {
+		int[] index = new int[Integer.highestOneBit(attribs.size()) * 4];
+		int mask = index.length - 1;
+		outer:
+		for (int a = 0; a < attribs.size(); a++) {
+			String name = attribs.get(a).getName();
+			int slot = name.hashCode() & mask;
+			for (; index[slot] != 0; slot = (slot + 1) & mask) {
+				if (attribs.get(index[slot] - 1).getName().equals(name)) {
+					continue outer;
+				}
+			}
+			index[slot] = a + 1;
+		}
+		return index;
 	}
 
 	public List<ASTNode> getChildren() {
+		if (children == null) {
+			children = lazy.children(this, record);
+		}
 		return children;
 	}
 
 	public String getTagName() {
-		return name.val;
+		startTag();
+		return name.val();
+	}
+
+	Token getNameToken() {
+		startTag();
+		return name;
+	}
+
+	/**
+	 * The '>' or '/>' ending the start tag.
+	 */
+	Token getTagEnd() {
+		startTag();
+		return close;
 	}
 
 	@Override
 	public void accept(HtmlVisitor visitor) {
 		visitor.visitElement(this);
 		getAttributes().forEach(visitor::visitAttribute);
-		for (ASTNode child : children) {
+		for (ASTNode child : getChildren()) {
 			child.accept(visitor);
 		}
 	}
 
 	@Override
 	public int start() {
-		return open.start;
+		return lazy != null ? lazy.start(record) : open.start;
 	}
 
 	@Override
 	public int end() {
+		if (lazy != null) {
+			return lazy.end(record);
+		}
 		return closeTag != null ? closeTag.end() : close.end;
 	}
 
+	/**
+	 * Offset after the start tag, only for elements with content.
+	 */
+	int contentStart() {
+		return lazy != null ? lazy.tagEnd(record) : close.end;
+	}
+
+	/**
+	 * Offset of the close tag, -1 for empty elements.
+	 */
+	int contentEnd() {
+		if (lazy != null) {
+			return lazy.close(record);
+		}
+		return closeTag != null ? closeTag.start() : -1;
+	}
+
+	boolean hasCloseTag() {
+		return contentEnd() != -1;
+	}
+
+	/**
+	 * The close tag, parsed on first access for lazy elements.
+	 */
+	CloseTag getCloseTag() {
+		if (closeTag == null && lazy != null && lazy.close(record) != -1) {
+			closeTag = lazy.closeTag(this, record);
+		}
+		return closeTag;
+	}
+
+	boolean isLazy() {
+		return lazy != null;
+	}
+
+	@Override
+	void shift(int delta, CharSequence source) {
+		open.shift(delta, source);
+		name.shift(delta, source);
+		close.shift(delta, source);
+		for (AttributeNode attrib : attribs) {
+			attrib.shift(delta, source);
+		}
+		if (closeTag != null) {
+			closeTag.shift(delta, source);
+		}
+	}
+
 	public List<AttributeNode> getAttributes() {
+		startTag();
 		return attribs;
 	}
 
+	/**
+	 * Replaces the children, which are moved under this element. The element and its ancestors count as
+	 * changed from now on, see {@link Serializer}.
+	 */
 	public void setChildren(List<ASTNode> children) {
+		checkNotShared();
+		for (ASTNode child : children) {
+			// would move the node out of the shared document
+			child.checkNotShared();
+		}
+		this.children = children;
+		for (ASTNode child : children) {
+			child.setParent(this);
+		}
+		markChanged();
+	}
+
+	/**
+	 * Makes children and attributes read-only, for documents shared by a {@link ParseCache}.
+	 */
+	void share() {
+		shared = true;
+		if (!children.isEmpty()) {
+			children = Collections.unmodifiableList(children);
+		}
+		if (!attribs.isEmpty()) {
+			attribs = Collections.unmodifiableList(attribs);
+		}
+	}
+
+	/**
+	 * Sets the children found by the parser.
+	 */
+	void initChildren(List<ASTNode> children) {
 		this.children = children;
 	}
 
+	/**
+	 * Creates an element to be inserted with {@link #setChildren(List)}. Attribute values are given as they
+	 * appear in the markup, without quotes, null for an attribute without value. Offsets of created nodes
+	 * do not point into any source.
+	 *
+	 * @param attributes names and values in turn
+	 */
+	public static ElementNode create(String name, String... attributes) {
+		if (attributes.length % 2 != 0) {
+			throw new IllegalArgumentException("attributes need a value each");
+		}
+		List<AttributeNode> attribs = new ArrayList<>(attributes.length / 2);
+		for (int a = 0; a < attributes.length; a += 2) {
+			String value = attributes[a + 1];
+			attribs.add(new AttributeNode(Token.of(attributes[a], TokenType.NAME),
+					value == null ? null : Token.of('"' + value + '"', TokenType.STRING)));
+		}
+		ElementNode element = new ElementNode(null, Token.of("<", TokenType.OPEN), Token.of(name, TokenType.NAME),
+				attribs, Token.of(">", TokenType.CLOSE));
+		element.created = true;
+		return element;
+	}
+
 	public void setCloseTag(CloseTag closeTag) {
+		checkNotShared();
 		this.closeTag = closeTag;
 	}
 
@@ -81,6 +254,13 @@ public class ElementNode extends ASTNode {
 		return ret;
 	}
 
+	/**
+	 * All descendants matching the CSS selector in document order, see {@link Selector}.
+	 */
+	public List<ElementNode> select(String css) {
+		return Selector.compile(css).select(this);
+	}
+
 	public String getTrimmedStringContent() {
 		List<ASTNode> children = getChildren();
 		if (children.size() != 1) throw new IllegalStateException("more than one child");
@@ -96,20 +276,51 @@ public class ElementNode extends ASTNode {
 
 	@Override
 	public String toString() {
+		startTag();
 		return "ElementNode{" +
 				"open=" + open +
 				", name=" + name +
 				", attribs=" + attribs +
-				", children=" + children +
+				", children=" + getChildren() +
 				", close=" + close +
 				", closeTag=" + closeTag +
 				'}';
 	}
 
 	public Optional<String> getAttribute(String name) {
-		return getAttributes().stream()
-				.filter(a -> a.getName().equals(name))
-				.map(AttributeNode::getValue)
-				.findAny();
+		return Optional.ofNullable(getAttributeValue(name));
+	}
+
+	/**
+	 * @return the value of the first attribute with the given name, or null if there is none or it has no value
+	 */
+	public String getAttributeValue(String name) {
+		AttributeNode attrib = findAttribute(name);
+		return attrib == null ? null : attrib.getValue();
+	}
+
+	/**
+	 * @return the first attribute with the given name, or null
+	 */
+	public AttributeNode findAttribute(String name) {
+		startTag();
+		if (attribIndex == null) {
+			for (int a = 0; a < attribs.size(); a++) {
+				AttributeNode attrib = attribs.get(a);
+				if (attrib.getName().equals(name)) {
+					return attrib;
+				}
+			}
+			return null;
+		}
+
+		int mask = attribIndex.length - 1;
+		for (int slot = name.hashCode() & mask; attribIndex[slot] != 0; slot = (slot + 1) & mask) {
+			AttributeNode attrib = attribs.get(attribIndex[slot] - 1);
+			if (attrib.getName().equals(name)) {
+				return attrib;
+			}
+		}
+		return null;
 	}
 }
@@ -0,0 +1,336 @@
+package parse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import parse.HtmlLexer.Token;
+import parse.HtmlLexer.TokenType;
+
+/**
+ * A document stored as parallel arrays indexed by node number, in document order. Nodes are linked
+ * by parent, first child and next sibling, -1 marks the absence of a node. Values are sliced from the
+ * source on request. {@link #node(int)} wraps a node in a view with the getters of the AST classes.
+ */
+public class FlatDocument {
+
+	public static final byte ELEMENT = 0;
+	public static final byte TEXT = 1;
+
+	final CharSequence source;
+
+	int count;
+	byte[] kinds = new byte[64];
+	// symbol id of the tag name, -1 for text
+	int[] names = new int[64];
+	int[] starts = new int[64];
+	int[] ends = new int[64];
+	// end of the start tag
+	int[] tagEnds = new int[64];
+	int[] parents = new int[64];
+	int[] firstChildren = new int[64];
+	int[] nextSiblings = new int[64];
+	// attributes of a node are the range [attribFrom, attribTo)
+	int[] attribFrom = new int[64];
+	int[] attribTo = new int[64];
+	int first = -1;
+
+	int attribCount;
+	int[] attribNames = new int[16];
+	int[] attribStarts = new int[16];
+	int[] attribNameEnds = new int[16];
+	// value including quotes, -1 for attributes without value
+	int[] valueStarts = new int[16];
+	int[] valueEnds = new int[16];
+
+	int symbolCount;
+	String[] symbols = new String[16];
+
+	FlatDocument(CharSequence source) {
+		this.source = source;
+	}
+
+	public CharSequence getSource() {
+		return source;
+	}
+
+	/**
+	 * The number of nodes, node numbers range from 0 to size() - 1.
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * The first top-level node, or -1 for an empty document.
+	 */
+	public int first() {
+		return first;
+	}
+
+	public byte kind(int node) {
+		return kinds[node];
+	}
+
+	public int parent(int node) {
+		return parents[node];
+	}
+
+	public int firstChild(int node) {
+		return firstChildren[node];
+	}
+
+	public int nextSibling(int node) {
+		return nextSiblings[node];
+	}
+
+	public int start(int node) {
+		return starts[node];
+	}
+
+	public int end(int node) {
+		return ends[node];
+	}
+
+	public String tagName(int node) {
+		return kinds[node] == ELEMENT ? symbols[names[node]] : null;
+	}
+
+	public int attributeCount(int node) {
+		return attribTo[node] - attribFrom[node];
+	}
+
+	public String attributeName(int node, int i) {
+		return symbols[attribNames[attribFrom[node] + i]];
+	}
+
+	/**
+	 * @return the unquoted value, or null for an attribute without value
+	 */
+	public String attributeValue(int node, int i) {
+		int a = attribFrom[node] + i;
+		return valueStarts[a] == -1 ? null : slice(valueStarts[a] + 1, valueEnds[a] - 1);
+	}
+
+	/**
+	 * @return the index of the first attribute with the given name, or -1
+	 */
+	public int attributeIndex(int node, String name) {
+		for (int a = attribFrom[node]; a < attribTo[node]; a++) {
+			if (symbols[attribNames[a]].equals(name)) {
+				return a - attribFrom[node];
+			}
+		}
+		return -1;
+	}
+
+	public String text(int node) {
+		return slice(starts[node], ends[node]);
+	}
+
+	public String trimmedText(int node) {
+		int from = starts[node];
+		int to = ends[node];
+		while (from < to && source.charAt(from) <= ' ') {
+			from++;
+		}
+		while (to > from && source.charAt(to - 1) <= ' ') {
+			to--;
+		}
+		return slice(from, to);
+	}
+
+	private String slice(int from, int to) {
+		return source.subSequence(from, to).toString();
+	}
+
+	public Node node(int node) {
+		return new Node(node);
+	}
+
+	public List<Node> getChildren() {
+		return views(first, false);
+	}
+
+	private List<Node> views(int node, boolean elementsOnly) {
+		if (node == -1) {
+			return Collections.emptyList();
+		}
+		List<Node> ret = new ArrayList<>();
+		for (; node != -1; node = nextSiblings[node]) {
+			if (!elementsOnly || kinds[node] == ELEMENT) {
+				ret.add(new Node(node));
+			}
+		}
+		return ret;
+	}
+
+	int addSymbol(String symbol) {
+		if (symbolCount == symbols.length) {
+			symbols = Arrays.copyOf(symbols, symbolCount * 2);
+		}
+		symbols[symbolCount] = symbol;
+		return symbolCount++;
+	}
+
+	int addNode(byte kind, int name, int start, int parent, int previous) {
+		if (count == kinds.length) {
+			int size = count * 2;
+			kinds = Arrays.copyOf(kinds, size);
+			names = Arrays.copyOf(names, size);
+			starts = Arrays.copyOf(starts, size);
+			ends = Arrays.copyOf(ends, size);
+			tagEnds = Arrays.copyOf(tagEnds, size);
+			parents = Arrays.copyOf(parents, size);
+			firstChildren = Arrays.copyOf(firstChildren, size);
+			nextSiblings = Arrays.copyOf(nextSiblings, size);
+			attribFrom = Arrays.copyOf(attribFrom, size);
+			attribTo = Arrays.copyOf(attribTo, size);
+		}
+		int node = count++;
+		kinds[node] = kind;
+		names[node] = name;
+		starts[node] = start;
+		parents[node] = parent;
+		firstChildren[node] = -1;
+		nextSiblings[node] = -1;
+		attribFrom[node] = attribTo[node] = attribCount;
+		if (previous != -1) {
+			nextSiblings[previous] = node;
+		} else if (parent != -1) {
+			firstChildren[parent] = node;
+		} else {
+			first = node;
+		}
+		return node;
+	}
+
+	void addAttribute(int node, int name, int start, int nameEnd, int valueStart, int valueEnd) {
+		if (attribCount == attribNames.length) {
+			int size = attribCount * 2;
+			attribNames = Arrays.copyOf(attribNames, size);
+			attribStarts = Arrays.copyOf(attribStarts, size);
+			attribNameEnds = Arrays.copyOf(attribNameEnds, size);
+			valueStarts = Arrays.copyOf(valueStarts, size);
+			valueEnds = Arrays.copyOf(valueEnds, size);
+		}
+		attribNames[attribCount] = name;
+		attribStarts[attribCount] = start;
+		attribNameEnds[attribCount] = nameEnd;
+		valueStarts[attribCount] = valueStart;
+		valueEnds[attribCount] = valueEnd;
+		attribTo[node] = ++attribCount;
+	}
+
+	/**
+	 * Cuts the arrays down to their content once the document is complete.
+	 */
+	void trim() {
+		kinds = Arrays.copyOf(kinds, count);
+		names = Arrays.copyOf(names, count);
+		starts = Arrays.copyOf(starts, count);
+		ends = Arrays.copyOf(ends, count);
+		tagEnds = Arrays.copyOf(tagEnds, count);
+		parents = Arrays.copyOf(parents, count);
+		firstChildren = Arrays.copyOf(firstChildren, count);
+		nextSiblings = Arrays.copyOf(nextSiblings, count);
+		attribFrom = Arrays.copyOf(attribFrom, count);
+		attribTo = Arrays.copyOf(attribTo, count);
+		attribNames = Arrays.copyOf(attribNames, attribCount);
+		attribStarts = Arrays.copyOf(attribStarts, attribCount);
+		attribNameEnds = Arrays.copyOf(attribNameEnds, attribCount);
+		valueStarts = Arrays.copyOf(valueStarts, attribCount);
+		valueEnds = Arrays.copyOf(valueEnds, attribCount);
+		symbols = Arrays.copyOf(symbols, symbolCount);
+	}
+
+	/**
+	 * A view of one node, created on demand and holding nothing but the node number.
+	 */
+	public final class Node {
+		private final int node;
+
+		Node(int node) {
+			this.node = node;
+		}
+
+		public int index() {
+			return node;
+		}
+
+		public boolean isElement() {
+			return kinds[node] == ELEMENT;
+		}
+
+		public Node getParent() {
+			return parents[node] == -1 ? null : new Node(parents[node]);
+		}
+
+		public int start() {
+			return starts[node];
+		}
+
+		public int end() {
+			return ends[node];
+		}
+
+		public String getTagName() {
+			return tagName(node);
+		}
+
+		public List<Node> getChildren() {
+			return views(firstChildren[node], false);
+		}
+
+		public List<Node> getChildNodes() {
+			return views(firstChildren[node], true);
+		}
+
+		public List<AttributeNode> getAttributes() {
+			List<AttributeNode> ret = new ArrayList<>(attributeCount(node));
+			for (int a = attribFrom[node]; a < attribTo[node]; a++) {
+				Token nameToken = new Token(attribStarts[a], attribNameEnds[a], symbols[attribNames[a]], TokenType.NAME);
+				Token value = valueStarts[a] == -1 ? null : new Token(source, valueStarts[a], valueEnds[a], TokenType.STRING);
+				ret.add(new AttributeNode(nameToken, value));
+			}
+			return ret;
+		}
+
+		public Optional<String> getAttribute(String name) {
+			int i = attributeIndex(node, name);
+			return i == -1 ? Optional.empty() : Optional.ofNullable(attributeValue(node, i));
+		}
+
+		public String trimmedString() {
+			return trimmedText(node);
+		}
+
+		public String getTrimmedStringContent() {
+			int child = firstChildren[node];
+			if (child == -1 || nextSiblings[child] != -1) throw new IllegalStateException("more than one child");
+			if (kinds[child] != TEXT) throw new IllegalStateException("only child is not a text node");
+			return trimmedText(child);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Node && ((Node) o).node == node && ((Node) o).document() == FlatDocument.this;
+		}
+
+		@Override
+		public int hashCode() {
+			return node;
+		}
+
+		private FlatDocument document() {
+			return FlatDocument.this;
+		}
+
+		@Override
+		public String toString() {
+			return isElement() ? "<" + getTagName() + ">@" + start() : "text@" + start();
+		}
+	}
+}
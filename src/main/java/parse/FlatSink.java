@@ -0,0 +1,123 @@
+package parse;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Appends the parsed nodes to a {@link FlatDocument}. Only the open elements and the last child
+ * per level are tracked, names are interned into the symbol table of the document.
+ */
+class FlatSink implements TokenSink {
+
+	private final HtmlLexer lexer;
+	private final FlatDocument doc;
+	// document symbol + 1 per lexer symbol, names the lexer did not intern are looked up by value
+	private int[] interned = new int[64];
+	private final Map<String, Integer> symbols = new HashMap<>();
+	// open elements and the last child appended at each level, level 0 is the document
+	private int[] open = new int[16];
+	private int[] last = new int[17];
+	// lexer symbol and span of the open names, for close tag checks
+	private int[] openNames = new int[3 * 16];
+	private int tagSymbol;
+	private int tagNameStart;
+	private int tagNameEnd;
+	private int depth;
+	private int tag;
+
+	FlatSink(HtmlLexer lexer) {
+		this.lexer = lexer;
+		this.doc = new FlatDocument(lexer.source());
+		last[0] = -1;
+	}
+
+	FlatDocument result() {
+		return doc;
+	}
+
+	private int add(byte kind, int name, int start) {
+		int node = doc.addNode(kind, name, start, depth == 0 ? -1 : open[depth - 1], last[depth]);
+		last[depth] = node;
+		return node;
+	}
+
+	private int symbol(int token) {
+		int symbol = lexer.symbol(token);
+		if (symbol == -1) {
+			String name = lexer.text(token);
+			Integer id = symbols.get(name);
+			if (id == null) {
+				id = doc.addSymbol(name);
+				symbols.put(name, id);
+			}
+			return id;
+		}
+		if (symbol >= interned.length) {
+			interned = Arrays.copyOf(interned, Math.max(symbol + 1, interned.length * 2));
+		}
+		if (interned[symbol] == 0) {
+			interned[symbol] = doc.addSymbol(lexer.name(token)) + 1;
+		}
+		return interned[symbol] - 1;
+	}
+
+	@Override
+	public void text(int text) {
+		int node = add(FlatDocument.TEXT, -1, lexer.start(text));
+		doc.ends[node] = doc.tagEnds[node] = lexer.end(text);
+	}
+
+	@Override
+	public void comment(int comment) {
+		// ignored like in the AST
+	}
+
+	@Override
+	public void startTag(int open, int name) {
+		tag = add(FlatDocument.ELEMENT, symbol(name), lexer.start(open));
+		tagSymbol = lexer.symbol(name);
+		tagNameStart = lexer.start(name);
+		tagNameEnd = lexer.end(name);
+	}
+
+	@Override
+	public void attribute(int name, int value) {
+		doc.addAttribute(tag, symbol(name), lexer.start(name), lexer.end(name),
+				value == -1 ? -1 : lexer.start(value), value == -1 ? -1 : lexer.end(value));
+	}
+
+	@Override
+	public void endStartTag(int close, boolean empty) {
+		doc.ends[tag] = doc.tagEnds[tag] = lexer.end(close);
+		if (!empty) {
+			if (depth == open.length) {
+				open = Arrays.copyOf(open, depth * 2);
+				last = Arrays.copyOf(last, depth * 2 + 1);
+				openNames = Arrays.copyOf(openNames, depth * 6);
+			}
+			openNames[3 * depth] = tagSymbol;
+			openNames[3 * depth + 1] = tagNameStart;
+			openNames[3 * depth + 2] = tagNameEnd;
+			open[depth++] = tag;
+			last[depth] = -1;
+		}
+	}
+
+	@Override
+	public void endTag(int open, int name, int close) {
+		int level = depth - 1;
+		int element = this.open[level];
+		String expected = doc.tagName(element);
+		if (!lexer.sameName(name, openNames[3 * level], openNames[3 * level + 1], openNames[3 * level + 2], expected)) {
+			throw HtmlParser.wrongCloseTag(expected, lexer.text(name), lexer.start(open));
+		}
+		doc.ends[element] = lexer.end(close);
+		depth--;
+	}
+
+	@Override
+	public void end() {
+		doc.trim();
+	}
+}
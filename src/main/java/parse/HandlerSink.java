@@ -0,0 +1,75 @@
+package parse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+class HandlerSink implements TokenSink {
+
+	private final HtmlLexer lexer;
+	private final HtmlHandler handler;
+	private final List<String> open = new ArrayList<>();
+	// symbol and span of the open names, for close tag checks
+	private int[] openNames = new int[3 * 16];
+
+	HandlerSink(HtmlLexer lexer, HtmlHandler handler) {
+		this.lexer = lexer;
+		this.handler = handler;
+	}
+
+	@Override
+	public void text(int text) {
+		handler.text(lexer.source(), lexer.start(text), lexer.end(text));
+	}
+
+	@Override
+	public void comment(int comment) {
+		handler.comment(lexer.source(), lexer.start(comment), lexer.end(comment));
+	}
+
+	@Override
+	public void startTag(int open, int name) {
+		String tagName = lexer.name(name);
+		int level = this.open.size();
+		if (3 * level == openNames.length) {
+			openNames = Arrays.copyOf(openNames, 6 * level);
+		}
+		openNames[3 * level] = lexer.symbol(name);
+		openNames[3 * level + 1] = lexer.start(name);
+		openNames[3 * level + 2] = lexer.end(name);
+		this.open.add(tagName);
+		handler.startElement(tagName, lexer.start(open));
+	}
+
+	@Override
+	public void attribute(int name, int value) {
+		if (value == -1) {
+			handler.attribute(lexer.name(name), null, lexer.start(name), lexer.end(name));
+		} else {
+			String unquoted = lexer.source().subSequence(lexer.start(value) + 1, lexer.end(value) - 1).toString();
+			handler.attribute(lexer.name(name), unquoted, lexer.start(name), lexer.end(value));
+		}
+	}
+
+	@Override
+	public void endStartTag(int close, boolean empty) {
+		if (empty) {
+			handler.endElement(open.remove(open.size() - 1), lexer.end(close));
+		}
+	}
+
+	@Override
+	public void endTag(int open, int name, int close) {
+		int level = this.open.size() - 1;
+		String tagName = this.open.remove(level);
+		if (!lexer.sameName(name, openNames[3 * level], openNames[3 * level + 1], openNames[3 * level + 2], tagName)) {
+			throw HtmlParser.wrongCloseTag(tagName, lexer.text(name), lexer.start(open));
+		}
+		handler.endElement(tagName, lexer.end(close));
+	}
+
+	@Override
+	public void end() {
+
+	}
+}
@@ -0,0 +1,30 @@
+package parse;
+
+/**
+ * Callbacks for {@link HtmlParser#parse(HtmlHandler)}, fired in document order without building a tree.
+ */
+public abstract class HtmlHandler {
+
+	public void startElement(String name, int start) {
+
+	}
+
+	/**
+	 * @param value the unquoted value, or null for an attribute without value
+	 */
+	public void attribute(String name, String value, int start, int end) {
+
+	}
+
+	public void text(CharSequence source, int start, int end) {
+
+	}
+
+	public void comment(CharSequence source, int start, int end) {
+
+	}
+
+	public void endElement(String name, int end) {
+
+	}
+}
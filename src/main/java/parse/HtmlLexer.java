@@ -1,140 +1,187 @@
 package parse;
 
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.lang.reflect.Field;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class HtmlLexer {
 	
-	private final String s;
+	private static final int WINDOW_SIZE = 8192;
+
+	private CharSequence s;
+	// what tokens slice their values from, s unless a document shares its source
+	private CharSequence tokenSource;
+	// set if s is a sliding window over a stream, tokens have to be materialized on creation
+	private CharWindow window;
+	// end of the input for in-memory sources
+	private int limit;
 	private int i = 0;
-	private final List<Token> tks = new ArrayList<>();
+	private static final TokenType[] TYPES = TokenType.values();
+
+	// token buffer as parallel arrays, tokens [head, tail) are not yet consumed,
+	// consumed tokens stay addressable by index until release()
+	private int[] starts = new int[16];
+	private int[] ends = new int[16];
+	private byte[] types = new byte[16];
+	// symbol of NAME tokens, -1 for other tokens and names not interned
+	private int[] syms = new int[16];
+	// kept across reset(), so names are shared by all documents of this lexer
+	private final SymbolTable symbols = new SymbolTable();
+	private int head = 0;
+	private int tail = 0;
 	private int state = States.INITIAL;
 	private int start = 0;
-	private int tok;
 
-	public HtmlLexer(String s) {
+	public HtmlLexer(CharSequence s) {
+		this(s, 0, s.length());
+	}
+
+	/**
+	 * Lexes only the given range of the source, offsets stay absolute.
+	 */
+	HtmlLexer(CharSequence s, int from, int to) {
+		this.s = s;
+		this.tokenSource = s;
+		this.window = null;
+		this.limit = to;
+		this.i = from;
+		this.start = from;
+	}
+
+	public HtmlLexer() {
+		this("");
+	}
+
+	/**
+	 * Lexes from a reader, buffering only the chars of tokens not yet released.
+	 */
+	public HtmlLexer(Reader reader) {
+		this(new CharWindow(reader, WINDOW_SIZE));
+	}
+
+	public HtmlLexer(InputStream in, Charset charset) {
+		this(new InputStreamReader(in, charset));
+	}
+
+	public HtmlLexer(ReadableByteChannel channel, Charset charset) {
+		this(Channels.newReader(channel, charset.newDecoder(), -1));
+	}
+
+	HtmlLexer(CharWindow window) {
+		this.s = window;
+		this.tokenSource = window;
+		this.window = window;
+	}
+
+	/**
+	 * Starts over on a new input, keeping the token buffer.
+	 */
+	public void reset(CharSequence s) {
+		reset(s, 0, s.length());
+	}
+
+	/**
+	 * Restarts on a range of the source, offsets stay absolute.
+	 */
+	void reset(CharSequence s, int from, int to) {
 		this.s = s;
-		lex();
+		this.tokenSource = s;
+		this.window = null;
+		limit = to;
+		i = from;
+		head = tail = 0;
+		state = States.INITIAL;
+		start = from;
 	}
 
+	/**
+	 * Lexes the remaining input eagerly and returns all tokens not yet consumed by {@link #next()}.
+	 */
 	public List<Token> getTokens() {
-		return tks;
+		List<Token> ret = new ArrayList<>();
+		while (peekType() != TokenType.EOF) {
+			ret.add(next());
+		}
+		return ret;
 	}
 
+	/**
+	 * Runs the state machine until at least one token is available or the input is exhausted.
+	 */
 	private void lex() {
-		while (i < s.length()) {
+		while (head == tail && has(i)) {
 			char c = s.charAt(i);
+			int transition = TRANSITIONS[state * CharClass.COUNT + (c < 128 ? CharClass.OF[c] : CharClass.OTHER)];
+			state = transition >>> 8;
 
-			switch (state) {
-				case States.IN_ELEMENT:
-				case States.OPEN_SEEN:
-				case States.CLOSER_SEEN:
-				case States.COMMENT_OPEN_2:
-				case States.COMMENT_OPEN_3:
-
-					switch (c) {
-
-						case '/':
-							if (state == States.OPEN_SEEN) {
-								createToken(TokenType.OPEN_END);
-								state = States.IN_ELEMENT;
-							} else if (state == States.IN_ELEMENT) {
-								state = States.CLOSER_SEEN;
-								start = i;
-							} else {
-								lexerError();
-							}
-							break;
-						
-						case '>':
-							if (state == States.CLOSER_SEEN) {
-								createToken(TokenType.CLOSE_END);
-								
-							} else if (state == States.IN_ELEMENT) {
-								start = i;
-								createToken(TokenType.CLOSE);
-							} else {
-								lexerError();
-							}
-							state = States.INITIAL;
-							break;
-						
-						case '=':
-							if (state == States.IN_ELEMENT) {
-								start = i;
-								createToken(TokenType.EQ);
-								
-							} else {
-								lexerError();
-							}
-							break;
-						
-						case '"':
-							readString();
-							break;
-						
-						case '!':
-							if (state == States.OPEN_SEEN) {
-								state = States.COMMENT_OPEN_2;
-							} else {
-								lexerError();
-							}
-							break;
-						
-						case '-':
-							if (state == States.COMMENT_OPEN_2) {
-								state = States.COMMENT_OPEN_3;
-							} else if (state == States.COMMENT_OPEN_3) {
-								readComment();
-								state = States.INITIAL;
-								
-							} else {
-								lexerError();
-							}
-							break;
-						
-						default:
-							if (state == States.OPEN_SEEN) {
-								createTokenEx(TokenType.OPEN);
-							}
-							if (c != ' ') {
-								readName();
-							}
-							state = States.IN_ELEMENT;
-					}
+			switch (transition & 0xff) {
+				case Actions.NONE:
 					break;
-
-				case States.INITIAL:
-					switch (c) {
-						case '<':
-							if (lookingAt("<?")) {
-								readPreamble();
-							} else if (lookingAt("<!") && !lookingAt("<!--")) {
-								readDocType();
-							} else if (state == States.INITIAL) {
-								state = States.OPEN_SEEN;
-								start = i;
-							} else {
-								lexerError();
-							}
-							break;
-
-						default:
-							readText();
-							state = States.INITIAL;
+				case Actions.MARK:
+					start = i;
+					break;
+				case Actions.OPEN:
+					createTokenEx(TokenType.OPEN);
+					break;
+				case Actions.OPEN_NAME:
+					createTokenEx(TokenType.OPEN);
+					readName();
+					break;
+				case Actions.NAME:
+					readName();
+					break;
+				case Actions.OPEN_END:
+					createToken(TokenType.OPEN_END);
+					break;
+				case Actions.CLOSE:
+					start = i;
+					createToken(TokenType.CLOSE);
+					break;
+				case Actions.CLOSE_END:
+					createToken(TokenType.CLOSE_END);
+					break;
+				case Actions.EQ:
+					start = i;
+					createToken(TokenType.EQ);
+					break;
+				case Actions.STRING:
+					readString();
+					break;
+				case Actions.COMMENT:
+					readComment();
+					state = States.INITIAL;
+					break;
+				case Actions.TAG:
+					if (lookingAt("<?")) {
+						readPreamble();
+						state = States.INITIAL;
+					} else if (lookingAt("<!") && !lookingAt("<!--")) {
+						readDocType();
+						state = States.INITIAL;
+					} else {
+						start = i;
 					}
 					break;
-
+				case Actions.TEXT:
+					readText();
+					break;
 				default:
 					lexerError();
-				
-					
 			}
 			i++;
 		}
 
-		if (state != States.INITIAL) lexerError();
+		if (head == tail) {
+			if (state != States.INITIAL) lexerError();
+			add(i, i, TokenType.EOF);
+		}
 	}
 
 	private void readDocType() {
@@ -167,7 +214,7 @@ public class HtmlLexer {
 	}
 
 	private void readChar(char c) {
-		if (i >= s.length()) {
+		if (!has(i)) {
 			throw new AssertionError("expected to see character '" + c + "', but was EOF");
 		}
 		char r = s.charAt(i++);
@@ -180,7 +227,7 @@ public class HtmlLexer {
 	private void readName() {
 		start = i;
 		outer:
-		while (i < s.length()) {
+		while (has(i)) {
 			char c = s.charAt(i);
 			switch (c) {
 				case ' ':
@@ -200,7 +247,7 @@ public class HtmlLexer {
 	}
 
 	private void skipWS() {
-		while (i < s.length()) {
+		while (has(i)) {
 			char c = s.charAt(i);
 			switch (c) {
 				case ' ':
@@ -217,27 +264,25 @@ public class HtmlLexer {
 
 	private void readText() {
 		start = i;
-		while (i < s.length() && !lookingAt("<")) {
-			i++;
-		}
+		int lt = indexOf('<', i);
+		i = lt == -1 ? end() : lt;
 		i--;
 		createToken(TokenType.TEXT);
 	}
 
 	private void readString() {
 		start = i;
-		while (++i < s.length()) {
-			if (lookingAt("\"")) {
-				createToken(TokenType.STRING);
-				return;
-			}
+		int quote = indexOf('"', i + 1);
+		if (quote == -1) {
+			i = end();
+			lexerError();
 		}
-		lexerError();
+		i = quote;
+		createToken(TokenType.STRING);
 	}
 
 	private void readComment() {
-		i = skipAfter("-->");
-		if (i == -1) {
+		if (skipAfter("-->") == -1) {
 			lexerError();
 		}
 		i--;
@@ -245,46 +290,323 @@ public class HtmlLexer {
 	}
 
 	private int skipAfter(String target) {
-		for (; i < s.length(); i++) {
+		char first = target.charAt(0);
+		while (true) {
+			int candidate = indexOf(first, i);
+			if (candidate == -1) {
+				return -1;
+			}
+			i = candidate;
 			if (lookingAt(target)) {
 				i = i + target.length();
 				return i;
 			}
+			i++;
+		}
+	}
+
+	/**
+	 * Finds the next occurrence of an ASCII delimiter, using the bulk search of the source where available.
+	 */
+	private int indexOf(char c, int from) {
+		if (window != null) {
+			return window.indexOf(c, from);
+		}
+		int found;
+		if (s instanceof String) {
+			found = ((String) s).indexOf(c, from);
+			return found < limit ? found : -1;
+		} else if (s instanceof ByteCharSequence) {
+			found = ((ByteCharSequence) s).indexOf((byte) c, from);
+			return found < limit ? found : -1;
+		}
+		for (int j = from; j < limit; j++) {
+			if (s.charAt(j) == c) {
+				return j;
+			}
 		}
 		return -1;
 	}
 
 	private boolean lookingAt(String target) {
 		for (int j = 0; j < target.length(); j++) {
-			if (i + j >= s.length() || s.charAt(i + j) != target.charAt(j)) {
+			if (!has(i + j) || s.charAt(i + j) != target.charAt(j)) {
 				return false;
 			}
 		}
 		return true;
 	}
 
+	private boolean has(int pos) {
+		return pos < limit || window != null && window.fill(pos);
+	}
+
+	private int end() {
+		return window != null ? s.length() : limit;
+	}
+
 	private void lexerError() {
-		throw new AssertionError(String.format("unexpected lexer state: pos %s, state: %s, at char: '%s', current tokens: %s", i, States.print(state), s.charAt(i), tks.subList(Math.max(0, tks.size() - 10), tks.size())));
+		List<Token> current = new ArrayList<>();
+		for (int t = Math.max(0, tail - 10); t < tail; t++) {
+			current.add(token(t));
+		}
+		throw new AssertionError(String.format("unexpected lexer state: pos %s, state: %s, at char: '%s', current tokens: %s", i, States.print(state), has(i) ? s.charAt(i) : "EOF", current));
 	}
 
 	private void createToken(TokenType type) {
-		tks.add(new Token(start, i + 1, s.substring(start, i + 1), type));
+		add(start, i + 1, type);
 	}
 
 	private void createTokenEx(TokenType type) {
-		tks.add(new Token(start, i, s.substring(start, i), type));
+		add(start, i, type);
+	}
+
+	private void add(int from, int to, TokenType type) {
+		if (tail == types.length) {
+			int size = tail * 2;
+			starts = Arrays.copyOf(starts, size);
+			ends = Arrays.copyOf(ends, size);
+			types = Arrays.copyOf(types, size);
+			syms = Arrays.copyOf(syms, size);
+		}
+		starts[tail] = from;
+		ends[tail] = to;
+		types[tail] = (byte) type.ordinal();
+		syms[tail] = type == TokenType.NAME ? symbols.intern(s, from, to) : -1;
+		tail++;
+	}
+
+	/**
+	 * Type of the next token, lexing it if necessary.
+	 */
+	public TokenType peekType() {
+		if (head == tail) {
+			lex();
+		}
+		return TYPES[types[head]];
+	}
+
+	/**
+	 * Consumes the next token and returns its index, which stays valid until {@link #release()}.
+	 */
+	public int advance() {
+		if (head == tail) {
+			lex();
+		}
+		return head++;
+	}
+
+	/**
+	 * Drops all consumed tokens, invalidating their indices, so the buffer can be reused.
+	 */
+	public void release() {
+		if (window != null) {
+			window.mark(head < tail ? Math.min(start, starts[head]) : start);
+		}
+		if (head == tail) {
+			head = tail = 0;
+		} else if (head > 0) {
+			int n = tail - head;
+			System.arraycopy(starts, head, starts, 0, n);
+			System.arraycopy(ends, head, ends, 0, n);
+			System.arraycopy(types, head, types, 0, n);
+			System.arraycopy(syms, head, syms, 0, n);
+			head = 0;
+			tail = n;
+		}
+	}
+
+	public TokenType type(int t) {
+		return TYPES[types[t]];
+	}
+
+	public int start(int t) {
+		return starts[t];
+	}
+
+	public int end(int t) {
+		return ends[t];
+	}
+
+	public String text(int t) {
+		return s.subSequence(starts[t], ends[t]).toString();
+	}
+
+	/**
+	 * The interned name of a NAME token, or its text if it was not interned.
+	 */
+	public String name(int t) {
+		return syms[t] != -1 ? symbols.name(syms[t]) : text(t);
+	}
+
+	/**
+	 * @return the symbol id of a NAME token, or -1. Ids are only comparable within this lexer.
+	 */
+	int symbol(int t) {
+		return syms[t];
+	}
+
+	boolean contentEquals(int t, String other) {
+		if (syms[t] != -1 && symbols.name(syms[t]) == other) {
+			return true;
+		}
+		if (s instanceof ByteCharSequence) {
+			// raw bytes, only names not interned can be non-ASCII
+			return syms[t] == -1 ? text(t).equals(other) : symbols.name(syms[t]).equals(other);
+		}
+		int from = starts[t];
+		if (ends[t] - from != other.length()) {
+			return false;
+		}
+		for (int j = 0; j < other.length(); j++) {
+			if (s.charAt(from + j) != other.charAt(j)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Whether a NAME token repeats an earlier name, given by its symbol, span and value. Interned names
+	 * compare by symbol, others by span in the source, which holds raw bytes for mapped files. Streams may
+	 * have dropped the earlier span, their chars are decoded already and compare with the value.
+	 */
+	boolean sameName(int t, int symbol, int from, int to, String name) {
+		if (syms[t] != -1 || symbol != -1) {
+			return syms[t] == symbol;
+		}
+		if (window != null) {
+			return text(t).equals(name);
+		}
+		int start = starts[t];
+		if (ends[t] - start != to - from) {
+			return false;
+		}
+		for (int j = 0; j < to - from; j++) {
+			if (s.charAt(start + j) != s.charAt(from + j)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	CharSequence source() {
+		return s;
+	}
+
+	/**
+	 * Makes tokens slice their values from the given source, which reads the same as the lexed one.
+	 */
+	void sliceFrom(CharSequence source) {
+		tokenSource = source;
+	}
+
+	public Token token(int t) {
+		Token token = new Token(tokenSource, starts[t], ends[t], TYPES[types[t]]);
+		if (syms[t] != -1) {
+			token.val = symbols.name(syms[t]);
+		}
+		if (window != null) {
+			// the window moves on, so the value cannot be sliced later
+			token.val();
+			token.src = null;
+		}
+		return token;
 	}
 
 	public Token next() {
-		return getTokens().get(tok++);
+		Token token = token(advance());
+		release();
+		return token;
 	}
 
 	public Token peek() {
-		if (tok == getTokens().size()) {
-			return new Token(i, i, "", TokenType.EOF);
-		} else {
-			return getTokens().get(tok);
+		peekType();
+		return token(head);
+	}
+
+	// [state][char class] -> next state << 8 | action
+	private static final short[] TRANSITIONS = new short[States.COUNT * CharClass.COUNT];
+
+	static {
+		for (int state = 0; state < States.COUNT; state++) {
+			for (int cls = 0; cls < CharClass.COUNT; cls++) {
+				on(state, cls, state, Actions.ERROR);
+			}
 		}
+
+		on(States.INITIAL, CharClass.LT, States.OPEN_SEEN, Actions.TAG);
+		for (int cls = 0; cls < CharClass.COUNT; cls++) {
+			if (cls != CharClass.LT) {
+				on(States.INITIAL, cls, States.INITIAL, Actions.TEXT);
+			}
+		}
+
+		int[] inTag = {States.OPEN_SEEN, States.CLOSER_SEEN, States.COMMENT_OPEN_2, States.COMMENT_OPEN_3, States.IN_ELEMENT};
+		for (int state : inTag) {
+			boolean open = state == States.OPEN_SEEN;
+			on(state, CharClass.OTHER, States.IN_ELEMENT, open ? Actions.OPEN_NAME : Actions.NAME);
+			on(state, CharClass.LT, States.IN_ELEMENT, open ? Actions.OPEN_NAME : Actions.NAME);
+			on(state, CharClass.SPACE, States.IN_ELEMENT, open ? Actions.OPEN : Actions.NONE);
+			on(state, CharClass.QUOTE, state, Actions.STRING);
+		}
+
+		on(States.OPEN_SEEN, CharClass.SLASH, States.IN_ELEMENT, Actions.OPEN_END);
+		on(States.OPEN_SEEN, CharClass.BANG, States.COMMENT_OPEN_2, Actions.NONE);
+		on(States.IN_ELEMENT, CharClass.SLASH, States.CLOSER_SEEN, Actions.MARK);
+		on(States.IN_ELEMENT, CharClass.GT, States.INITIAL, Actions.CLOSE);
+		on(States.IN_ELEMENT, CharClass.EQ, States.IN_ELEMENT, Actions.EQ);
+		on(States.CLOSER_SEEN, CharClass.GT, States.INITIAL, Actions.CLOSE_END);
+		on(States.COMMENT_OPEN_2, CharClass.DASH, States.COMMENT_OPEN_3, Actions.NONE);
+		on(States.COMMENT_OPEN_3, CharClass.DASH, States.COMMENT_OPEN_3, Actions.COMMENT);
+	}
+
+	private static void on(int state, int cls, int next, int action) {
+		TRANSITIONS[state * CharClass.COUNT + cls] = (short) (next << 8 | action);
+	}
+
+	private static class CharClass {
+		static final int OTHER = 0;
+		static final int SPACE = 1;
+		static final int LT = 2;
+		static final int GT = 3;
+		static final int SLASH = 4;
+		static final int EQ = 5;
+		static final int QUOTE = 6;
+		static final int BANG = 7;
+		static final int DASH = 8;
+		static final int COUNT = 9;
+
+		// ASCII char -> class, everything else is OTHER
+		static final byte[] OF = new byte[128];
+
+		static {
+			OF[' '] = SPACE;
+			OF['<'] = LT;
+			OF['>'] = GT;
+			OF['/'] = SLASH;
+			OF['='] = EQ;
+			OF['"'] = QUOTE;
+			OF['!'] = BANG;
+			OF['-'] = DASH;
+		}
+	}
+
+	private static class Actions {
+		static final int ERROR = 0;
+		static final int NONE = 1;
+		static final int MARK = 2;
+		static final int OPEN = 3;
+		static final int OPEN_NAME = 4;
+		static final int NAME = 5;
+		static final int OPEN_END = 6;
+		static final int CLOSE = 7;
+		static final int CLOSE_END = 8;
+		static final int EQ = 9;
+		static final int STRING = 10;
+		static final int COMMENT = 11;
+		static final int TAG = 12;
+		static final int TEXT = 13;
 	}
 
 	private static class States {
@@ -293,8 +615,8 @@ public class HtmlLexer {
 		public static final int CLOSER_SEEN = 2;
 		public static final int COMMENT_OPEN_2 = 3;
 		public static final int COMMENT_OPEN_3 = 4;
-		public static final int OPEN_END_SEEN = 7;
-		public static final int IN_ELEMENT = 9;
+		public static final int IN_ELEMENT = 5;
+		public static final int COUNT = 6;
 
 		public static String print(int state) {
 			try {
@@ -313,6 +635,8 @@ public class HtmlLexer {
 
 	public static class Token {
 		int start, end;
+		// source the value is sliced from on first access
+		CharSequence src;
 		String val;
 		TokenType type;
 
@@ -323,12 +647,86 @@ public class HtmlLexer {
 			this.type = type;
 		}
 
+		public Token(CharSequence src, int start, int end, TokenType type) {
+			this.start = start;
+			this.end = end;
+			this.src = src;
+			this.type = type;
+		}
+
+		/**
+		 * A token not taken from a source, offsets are relative to the value.
+		 */
+		static Token of(String val, TokenType type) {
+			return new Token(0, val.length(), val, type);
+		}
+
+		public String val() {
+			if (val == null) {
+				val = src.subSequence(start, end).toString();
+			}
+			return val;
+		}
+
+		/**
+		 * Returns the value between the given absolute offsets, without materializing the whole token.
+		 */
+		String slice(int from, int to) {
+			if (src != null) {
+				return src.subSequence(from, to).toString();
+			}
+			return val.substring(from - start, to - start);
+		}
+
+		/**
+		 * Moves the token by delta, its value comes from the new source from now on.
+		 */
+		void shift(int delta, CharSequence source) {
+			start += delta;
+			end += delta;
+			if (src != null) {
+				src = source;
+			}
+		}
+
+		char charAt(int pos) {
+			// offsets index the source, which may hold bytes rather than the chars of val
+			return src != null ? src.charAt(pos) : val.charAt(pos - start);
+		}
+
+		boolean contentEquals(String other) {
+			if (end - start != other.length()) {
+				return false;
+			}
+			for (int j = 0; j < other.length(); j++) {
+				if (charAt(start + j) != other.charAt(j)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		boolean contentEquals(Token other) {
+			if (val != null && val == other.val) {
+				return true;
+			}
+			if (end - start != other.end - other.start) {
+				return false;
+			}
+			for (int j = 0; j < end - start; j++) {
+				if (charAt(start + j) != other.charAt(other.start + j)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
 		@Override
 		public String toString() {
 			return "Token{" +
 					"start=" + start +
 					", end=" + end +
-					", val='" + val.replace("\n", "\\n").replace("\r", "\\r").replace("\t", "\\t") + '\'' +
+					", val='" + val().replace("\n", "\\n").replace("\r", "\\r").replace("\t", "\\t") + '\'' +
 					", type=" + type +
 					'}';
 		}
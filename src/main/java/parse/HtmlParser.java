@@ -3,126 +3,304 @@ package parse;
 import static parse.HtmlLexer.TokenType.NAME;
 import static parse.HtmlLexer.TokenType.OPEN;
 
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.List;
 
-import parse.HtmlLexer.Token;
 import parse.HtmlLexer.TokenType;
 
 // 11:25-15:06/19:28-21:45
 public class HtmlParser {
 	
 	private final HtmlLexer lexer;
+	private final TreeSink tree;
 	
-	public HtmlParser(String s) {
-		lexer = new HtmlLexer(s);
+	public HtmlParser(CharSequence s) {
+		this(new HtmlLexer(s));
+	}
+
+	/**
+	 * Creates a parser to be fed by {@link #reset(CharSequence)}.
+	 */
+	public HtmlParser() {
+		this(new HtmlLexer());
+	}
+
+	public HtmlParser(Reader reader) {
+		this(new HtmlLexer(reader));
+	}
+
+	public HtmlParser(InputStream in, Charset charset) {
+		this(new HtmlLexer(in, charset));
+	}
+
+	public HtmlParser(ReadableByteChannel channel, Charset charset) {
+		this(new HtmlLexer(channel, charset));
+	}
+
+	/**
+	 * Parses only the given range of the source, offsets stay absolute.
+	 */
+	HtmlParser(CharSequence s, int from, int to) {
+		this(new HtmlLexer(s, from, to));
+	}
+
+	private HtmlParser(HtmlLexer lexer) {
+		this.lexer = lexer;
+		this.tree = new TreeSink(lexer);
 	}
 	
+	/**
+	 * Memory-maps an ASCII or UTF-8 file and lexes its bytes directly. Offsets of tokens and nodes are
+	 * byte offsets into the file, values are decoded only when requested. Files are limited to 2 GB.
+	 */
+	public static HtmlParser mapFile(Path path) throws IOException {
+		return new HtmlParser(map(path));
+	}
+
+	static CharSequence map(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			return new ByteCharSequence(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	/**
+	 * Prepares the parser for the next document, reusing its lexer buffer and scratch lists. Nothing
+	 * of the previous document stays reachable from the parser. A parser is not thread-safe, keep one
+	 * per thread or in a pool.
+	 */
+	public HtmlParser reset(CharSequence s) {
+		lexer.reset(s);
+		tree.clear();
+		return this;
+	}
+
+	/**
+	 * Whether the parser refers to no document, as after a reset on an empty source.
+	 */
+	boolean isClear() {
+		return lexer.source().length() == 0 && tree.isClear();
+	}
+
+	/**
+	 * Prepares the parser for a range of the source, see {@link #HtmlParser(CharSequence, int, int)}.
+	 */
+	HtmlParser reset(CharSequence s, int from, int to) {
+		lexer.reset(s, from, to);
+		tree.clear();
+		return this;
+	}
+
 	public DocNode parseDoc() {
 		DocNode docNode = new DocNode();
+		if (!(lexer.source() instanceof CharWindow)) {
+			docNode.source = new SharedSource(lexer.source());
+			lexer.sliceFrom(docNode.source);
+		}
 		List<ASTNode> children = parseNodeList(null);
 
 		docNode.setChildren(children);
 		return docNode;
 	}
 
-	private List<ASTNode> parseNodeList(ElementNode parent) {
-		List<ASTNode> children = new ArrayList<>();
-		outer:
+	/**
+	 * Parses lazily: one cheap pass finds the boundaries of all elements and checks their nesting,
+	 * elements parse their start tag and list their children on first access. Errors inside start
+	 * tags surface on access. Needs an in-memory source, the document is not thread-safe.
+	 */
+	public DocNode parseLazy() {
+		if (lexer.source() instanceof CharWindow) {
+			throw new IllegalStateException("lazy documents need an in-memory source");
+		}
+		DocNode docNode = new DocNode();
+		docNode.setChildren(new LazyTree(lexer.source()).children(null, -1));
+		return docNode;
+	}
+
+	/**
+	 * Brings a document up to date with edits of its source, reparsing only the content of the smallest
+	 * element enclosing all edits and reusing all other nodes. The document is mutated in place and the
+	 * same instance is returned, unless a full parse was necessary. Either way the nodes slice their
+	 * values from the new source only, the old one may be discarded or reused.
+	 *
+	 * @param source the source after the edits, see {@link TextEdit#apply(CharSequence, List)}
+	 * @param edits sorted and not overlapping, with offsets into the source before the edits
+	 */
+	public static DocNode reparse(DocNode doc, CharSequence source, List<TextEdit> edits) {
+		return Reparser.reparse(doc, source, edits);
+	}
+
+	/**
+	 * Streams the document to the handler without building a tree.
+	 */
+	public void parse(HtmlHandler handler) {
+		drive(new HandlerSink(lexer, handler));
+	}
+
+	/**
+	 * Parses the document and builds nodes only for the elements matching the selectors, with their
+	 * subtrees. Matching elements that are not inside another match have no parent. The rest of the
+	 * document is only checked for well-formedness.
+	 *
+	 * @return the matches of each selector in document order, in the order of the selectors
+	 */
+	public List<List<ElementNode>> select(Selector... selectors) {
+		SelectSink sink = new SelectSink(lexer, selectors);
+		drive(sink);
+		return sink.result();
+	}
+
+	/**
+	 * Parses the document into flat node tables instead of node objects. Needs an in-memory source,
+	 * as text and values are sliced from it later.
+	 */
+	public FlatDocument parseFlat() {
+		if (lexer.source() instanceof CharWindow) {
+			throw new IllegalStateException("flat documents need an in-memory source");
+		}
+		FlatSink sink = new FlatSink(lexer);
+		drive(sink);
+		return sink.result();
+	}
+
+	private void drive(TokenSink sink) {
+		int depth = 0;
 		while (true) {
-			ASTNode cur;
-			switch (lexer.peek().type) {
+			lexer.release();
+
+			switch (lexer.peekType()) {
 				case OPEN:
-					cur = parseOpenNode(parent);
+					if (!parseStartTag(sink)) {
+						depth++;
+					}
 					break;
+
 				case TEXT:
-					cur = parseTextNode(parent);
+					sink.text(lexer.advance());
 					break;
 
 				case COMMENT:
+					sink.comment(lexer.advance());
+					break;
+
 				case PREAMBLE:
 				case DOCTYPE:
-					// ignore for now
-					lexer.next();
-					continue outer;
+					lexer.advance();
+					break;
 
 				case OPEN_END:
 				case EOF:
-					break outer;
+					if (depth == 0) {
+						sink.end();
+						return;
+					}
+					int open = expect(lexer.advance(), TokenType.OPEN_END);
+					int name = expect(lexer.advance(), NAME);
+					int close = expect(lexer.advance(), TokenType.CLOSE);
+					sink.endTag(open, name, close);
+					depth--;
+					break;
 
 				default:
 					throw new AssertionError("unexpected type: " + lexer.peek());
 			}
-			children.add(cur);
 		}
-
-		return children;
 	}
 
-	private ASTNode parseTextNode(ElementNode parent) {
-		Token text = expect(lexer.next(), TokenType.TEXT);
-		return new TextNode(parent, text);
-	}
-	
-	private ASTNode parseOpenNode(ElementNode parent) {
-		Token open = expect(lexer.next(), OPEN);
-		Token name = expect(lexer.next(), NAME);
+	/**
+	 * @return true if the element is empty, i.e. has no content and close tag
+	 */
+	private boolean parseStartTag(TokenSink sink) {
+		int open = expect(lexer.advance(), OPEN);
+		int name = expect(lexer.advance(), NAME);
+		boolean singular = lexer.contentEquals(name, "br") || lexer.contentEquals(name, "img");
+		sink.startTag(open, name);
 
-		List<AttributeNode> attribs = new ArrayList<>();
-		while (lexer.peek().type == NAME) {
-			attribs.add(parseAttribute());
-		}
-
-		Token close = lexer.next();
-		if (close.type == TokenType.CLOSE_END || isSingular(name.val)) {
-			return new ElementNode(parent, open, name, attribs, close);
-
-		} else if (close.type == TokenType.CLOSE) {
-			ElementNode elementNode = new ElementNode(parent, open, name, attribs, close);
-
-			List<ASTNode> children = parseNodeList(elementNode);
-			CloseTag closeTag = parseCloseNode(elementNode);
-			if (!closeTag.getName().equals(name.val)) {
-				throw new AssertionError("wrong close tag, expected '" + name.val +
-						"', but was '" + closeTag.getName() + "' at offset: " + closeTag.start());
+		while (lexer.peekType() == NAME) {
+			int attrib = lexer.advance();
+			int value = -1;
+			if (lexer.peekType() == TokenType.EQ) {
+				lexer.advance();
+				value = expect(lexer.advance(), TokenType.STRING);
 			}
-			elementNode.setChildren(children);
-			elementNode.setCloseTag(closeTag);
+			sink.attribute(attrib, value);
+		}
 
-			return elementNode;
+		int close = lexer.advance();
+		boolean empty;
+		if (lexer.type(close) == TokenType.CLOSE_END || singular) {
+			empty = true;
+		} else if (lexer.type(close) == TokenType.CLOSE) {
+			empty = false;
 		} else {
-			throw new AssertionError("tag close expected: " + close);
+			throw new AssertionError("tag close expected: " + lexer.token(close));
 		}
+		sink.endStartTag(close, empty);
+		return empty;
 	}
 
-	private boolean isSingular(String val) {
-		return Arrays.asList("br", "img").contains(val);
+	static AssertionError wrongCloseTag(String expected, String actual, int offset) {
+		return new AssertionError("wrong close tag, expected '" + expected +
+				"', but was '" + actual + "' at offset: " + offset);
 	}
-	
-	private CloseTag parseCloseNode(ElementNode parent) {
-		Token open = expect(lexer.next(), TokenType.OPEN_END);
-		Token name = expect(lexer.next(), TokenType.NAME);
-		Token close = expect(lexer.next(), TokenType.CLOSE);
-		
-		return new CloseTag(parent, open, name, close);
+
+	/**
+	 * Makes the parsed nodes slice their values from the given source, see {@link DocNode#source}.
+	 */
+	HtmlParser sliceFrom(SharedSource source) {
+		lexer.sliceFrom(source);
+		return this;
 	}
-	
-	private AttributeNode parseAttribute() {
-		Token name = expect(lexer.next(), NAME);
 
-		Token value = null;
-		if (lexer.peek().type == TokenType.EQ) {
-			lexer.next();
-			value = expect(lexer.next(), TokenType.STRING);
+	List<ASTNode> parseNodeList(ElementNode parent) {
+		tree.begin(parent);
+		drive(tree);
+		return tree.result();
+	}
+
+	/**
+	 * Parses a start tag with content, leaving children and close tag to the caller.
+	 */
+	ElementNode parseElementStart(ElementNode parent) {
+		tree.begin(parent);
+		lexer.release();
+		if (parseStartTag(tree)) {
+			throw new AssertionError("expected element with content");
 		}
+		return tree.current();
+	}
+
+	/**
+	 * Parses a single start tag into a detached element.
+	 */
+	ElementNode parseTag() {
+		tree.begin(null);
+		lexer.release();
+		parseStartTag(tree);
+		return tree.last();
+	}
+
+	CloseTag parseCloseTag(ElementNode element) {
+		lexer.release();
+		int open = expect(lexer.advance(), TokenType.OPEN_END);
+		int name = expect(lexer.advance(), NAME);
+		int close = expect(lexer.advance(), TokenType.CLOSE);
+		return TreeSink.closeTag(lexer, element, open, name, close);
+	}
 
-		return new AttributeNode(name, value);
+	boolean atEnd() {
+		return lexer.peekType() == TokenType.EOF;
 	}
 
-	private Token expect(Token token, TokenType type) {
-		if (token.type != type) {
-			throw new AssertionError("expected type: " + type + ", was: " + token);
+	private int expect(int token, TokenType type) {
+		if (lexer.type(token) != type) {
+			throw new AssertionError("expected type: " + type + ", was: " + lexer.token(token));
 		}
 		return token;
 	}
@@ -0,0 +1,94 @@
+package parse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import parse.HtmlLexer.Token;
+import parse.HtmlLexer.TokenType;
+
+/**
+ * The element boundaries of a lazily parsed document, found by one {@link StructureScanner} pass.
+ * Elements parse their start tag and list their children from these records on first access.
+ */
+class LazyTree {
+
+	private final CharSequence s;
+	private final StructureScanner scan;
+	// reset for each range to parse, elements expand one at a time
+	private final HtmlParser parser = new HtmlParser();
+
+	LazyTree(CharSequence s) {
+		this.s = s;
+		this.scan = new StructureScanner(s, Integer.MAX_VALUE).scan(0, s.length());
+	}
+
+	int start(int record) {
+		return scan.starts[record];
+	}
+
+	int end(int record) {
+		return scan.ends[record];
+	}
+
+	int tagEnd(int record) {
+		return scan.tagEnds[record];
+	}
+
+	/**
+	 * @return the start of the close tag, -1 for empty elements
+	 */
+	int close(int record) {
+		return scan.closes[record];
+	}
+
+	CloseTag closeTag(ElementNode element, int record) {
+		return parser.reset(s, scan.closes[record], scan.ends[record]).parseCloseTag(element);
+	}
+
+	ElementNode startTag(int record) {
+		return parser.reset(s, scan.starts[record], scan.tagEnds[record]).parseTag();
+	}
+
+	/**
+	 * @param record the element record, or -1 for the top level of the document
+	 */
+	List<ASTNode> children(ElementNode parent, int record) {
+		int from;
+		int to;
+		if (record == -1) {
+			from = 0;
+			to = s.length();
+		} else if (scan.closes[record] == -1) {
+			return Collections.emptyList();
+		} else {
+			from = scan.tagEnds[record];
+			to = scan.closes[record];
+		}
+
+		List<ASTNode> children = new ArrayList<>();
+		int pos = from;
+		// records of a subtree are contiguous, so children are found by skipping subtrees
+		for (int r = record + 1; r < scan.count && scan.starts[r] < to; r = scan.afters[r]) {
+			text(parent, pos, scan.starts[r], children);
+			children.add(new ElementNode(parent, this, r));
+			pos = scan.ends[r];
+		}
+		text(parent, pos, to, children);
+		return children.isEmpty() ? Collections.emptyList() : children;
+	}
+
+	private void text(ElementNode parent, int from, int to, List<ASTNode> children) {
+		if (from == to) {
+			return;
+		}
+		for (int j = from; j < to; j++) {
+			if (s.charAt(j) == '<') {
+				// comments and the like, leave them to the parser
+				children.addAll(parser.reset(s, from, to).parseNodeList(parent));
+				return;
+			}
+		}
+		children.add(new TextNode(parent, new Token(s, from, to, TokenType.TEXT)));
+	}
+}
@@ -0,0 +1,221 @@
+package parse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Parses large in-memory documents on a ForkJoinPool. {@link StructureScanner} pre-scans find the
+ * largest top-level element and descend into its dominant child while there are too few children to
+ * split between. The content of the element reached is split between its children into chunks that
+ * are parsed concurrently, the elements on the way down are parsed around it and the results are
+ * stitched together. Offsets are absolute throughout. Small documents, documents without such an
+ * element and documents the scanner rejects are parsed sequentially. Errors are reported as by
+ * {@link HtmlParser#parseDoc()}, the document is parsed only once either way.
+ */
+public class ParallelHtmlParser {
+
+	private static final int MIN_CHUNK = 64 * 1024;
+	// elements to descend through at most
+	private static final int MAX_LEVELS = 8;
+
+	private final CharSequence s;
+	private final ForkJoinPool pool;
+	private int chunks;
+	// of the document being parsed
+	private SharedSource shared;
+
+	public ParallelHtmlParser(CharSequence s) {
+		this(s, ForkJoinPool.commonPool());
+	}
+
+	public ParallelHtmlParser(CharSequence s, ForkJoinPool pool) {
+		this.s = s;
+		this.pool = pool;
+	}
+
+	public DocNode parseDoc() {
+		chunks = 0;
+		List<int[]> path;
+		try {
+			path = split();
+		} catch (AssertionError e) {
+			// the sequential parser reports the error
+			path = null;
+		}
+		if (path == null) {
+			return new HtmlParser(s).parseDoc();
+		}
+		return parseChunked(path);
+	}
+
+	/**
+	 * The number of chunks the last {@link #parseDoc()} parsed concurrently, 0 if it parsed sequentially.
+	 */
+	int chunks() {
+		return chunks;
+	}
+
+	/**
+	 * Finds the elements to descend through, each as {start, content start, content end, end}, followed
+	 * by the cuts in the content of the last one. Null if the document is not worth splitting.
+	 */
+	private List<int[]> split() {
+		int length = s.length();
+		if (length < 2 * MIN_CHUNK) {
+			return null;
+		}
+
+		StructureScanner scan = new StructureScanner(s, 0).scan(0, length);
+		List<int[]> path = new ArrayList<>();
+		int[] best = null;
+		int bestLevels = 0;
+		int record = largest(scan);
+		while (record != -1 && path.size() < MAX_LEVELS) {
+			int contentStart = scan.tagEnds[record];
+			int contentEnd = scan.closes[record];
+			path.add(new int[]{scan.starts[record], contentStart, contentEnd, scan.ends[record]});
+
+			scan = new StructureScanner(s, 0).scan(contentStart, contentEnd);
+			int[] cuts = cuts(scan, contentStart, contentEnd);
+			if (best == null || cuts.length > best.length) {
+				best = cuts;
+				bestLevels = path.size();
+			}
+			if (cuts.length - 1 >= wanted(contentEnd - contentStart)) {
+				break;
+			}
+			record = largest(scan);
+			if (record != -1 && 2 * (scan.closes[record] - scan.tagEnds[record]) < contentEnd - contentStart) {
+				// no child holds most of the content, descending would leave the rest sequential
+				record = -1;
+			}
+		}
+		if (best == null || best.length < 3) {
+			return null;
+		}
+		path = new ArrayList<>(path.subList(0, bestLevels));
+		path.add(best);
+		return path;
+	}
+
+	/**
+	 * The recorded element with the largest content, -1 if none has content.
+	 */
+	private static int largest(StructureScanner scan) {
+		int ret = -1;
+		for (int r = 0; r < scan.count; r++) {
+			if (scan.closes[r] != -1 && (ret == -1 || scan.closes[r] - scan.tagEnds[r] > scan.closes[ret] - scan.tagEnds[ret])) {
+				ret = r;
+			}
+		}
+		return ret;
+	}
+
+	private int wanted(int size) {
+		return Math.max(2, Math.min(pool.getParallelism(), size / MIN_CHUNK));
+	}
+
+	/**
+	 * Offsets between the recorded elements that split the range into chunks, including both ends.
+	 */
+	private int[] cuts(StructureScanner scan, int from, int to) {
+		int target = Math.max(MIN_CHUNK, (to - from) / (pool.getParallelism() * 4));
+		List<Integer> cuts = new ArrayList<>();
+		cuts.add(from);
+		for (int r = 0; r < scan.count; r++) {
+			if (scan.ends[r] - cuts.get(cuts.size() - 1) >= target && scan.ends[r] < to) {
+				cuts.add(scan.ends[r]);
+			}
+		}
+		cuts.add(to);
+		return cuts.stream().mapToInt(Integer::intValue).toArray();
+	}
+
+	/**
+	 * Parses in document order, so the first error is the one the sequential parser would report.
+	 */
+	private DocNode parseChunked(List<int[]> split) {
+		int levels = split.size() - 1;
+		List<int[]> path = split.subList(0, levels);
+		int[] cuts = split.get(levels);
+		shared = new SharedSource(s);
+
+		// everything before the chunks, down the path
+		List<ASTNode> leading = parseRange(null, 0, path.get(0)[0]);
+		ElementNode[] elements = new ElementNode[levels];
+		List<List<ASTNode>> befores = new ArrayList<>();
+		for (int i = 0; i < levels; i++) {
+			int[] element = path.get(i);
+			ElementNode parent = i == 0 ? null : elements[i - 1];
+			if (i > 0) {
+				befores.add(parseRange(parent, path.get(i - 1)[1], element[0]));
+			}
+			elements[i] = parser(element[0], element[1]).parseElementStart(parent);
+		}
+
+		ElementNode inner = elements[levels - 1];
+		List<ForkJoinTask<List<ASTNode>>> tasks = new ArrayList<>();
+		// parse errors by chunk, join() would rethrow a copy without message
+		AssertionError[] errors = new AssertionError[cuts.length - 1];
+		for (int c = 0; c + 1 < cuts.length; c++) {
+			int chunk = c;
+			tasks.add(pool.submit(() -> {
+				try {
+					return parseRange(inner, cuts[chunk], cuts[chunk + 1]);
+				} catch (AssertionError e) {
+					errors[chunk] = e;
+					return null;
+				}
+			}));
+		}
+		chunks = tasks.size();
+		List<ASTNode> children = new ArrayList<>();
+		for (int t = 0; t < tasks.size(); t++) {
+			List<ASTNode> nodes = tasks.get(t).join();
+			if (errors[t] != null) {
+				for (int rest = t + 1; rest < tasks.size(); rest++) {
+					tasks.get(rest).cancel(false);
+				}
+				throw errors[t];
+			}
+			children.addAll(nodes);
+		}
+
+		// and back up the path, everything after the chunks
+		for (int i = levels - 1; i >= 0; i--) {
+			int[] element = path.get(i);
+			if (i < levels - 1) {
+				children = new ArrayList<>(befores.get(i));
+				children.add(elements[i + 1]);
+				children.addAll(parseRange(elements[i], path.get(i + 1)[3], element[2]));
+			}
+			elements[i].initChildren(children);
+			elements[i].setCloseTag(parser(element[2], element[3]).parseCloseTag(elements[i]));
+		}
+		List<ASTNode> trailing = parseRange(null, path.get(0)[3], s.length());
+
+		List<ASTNode> nodes = new ArrayList<>(leading.size() + 1 + trailing.size());
+		nodes.addAll(leading);
+		nodes.add(elements[0]);
+		nodes.addAll(trailing);
+		DocNode docNode = new DocNode();
+		docNode.source = shared;
+		docNode.setChildren(nodes);
+		return docNode;
+	}
+
+	private List<ASTNode> parseRange(ElementNode parent, int from, int to) {
+		HtmlParser parser = parser(from, to);
+		List<ASTNode> nodes = parser.parseNodeList(parent);
+		if (!parser.atEnd()) {
+			throw new AssertionError("range not fully parsed: " + from + "-" + to);
+		}
+		return nodes;
+	}
+
+	private HtmlParser parser(int from, int to) {
+		return new HtmlParser(s, from, to).sliceFrom(shared);
+	}
+}
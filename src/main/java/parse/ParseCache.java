@@ -0,0 +1,131 @@
+package parse;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Parses each distinct content once. Documents are keyed by a 128-bit hash of the content and shared
+ * between all callers parsing the same content, so they cannot be changed: their child and attribute
+ * lists are unmodifiable, setters throw {@link UnsupportedOperationException} and so does moving their
+ * nodes into other elements. Memory is bounded by an estimate of the bytes retained per document,
+ * least recently used documents are evicted first. Thread-safe, concurrent requests for the same
+ * content wait for a single parse.
+ */
+public class ParseCache {
+
+	// rough retained sizes, including tokens and list slots
+	private static final int ELEMENT_BYTES = 200;
+	private static final int CLOSE_TAG_BYTES = 120;
+	private static final int ATTRIBUTE_BYTES = 100;
+	private static final int TEXT_BYTES = 60;
+
+	private static final HashFunction HASH = Hashing.murmur3_128();
+
+	private final Cache<HashCode, Entry> cache;
+
+	/**
+	 * @param maxBytes bound for the estimated size of the cached documents and their sources
+	 */
+	public ParseCache(long maxBytes) {
+		this.cache = CacheBuilder.newBuilder()
+				.maximumWeight(maxBytes)
+				.<HashCode, Entry>weigher((key, entry) -> entry.weight)
+				.recordStats()
+				.build();
+	}
+
+	/**
+	 * Returns the document of the content, parsing it on a miss. Content hashing to a cached document
+	 * of other content is parsed without caching.
+	 */
+	public DocNode parse(CharSequence content) {
+		// tokens slice from the source, which must not change behind the cache
+		String source = content.toString();
+		HashCode key = HASH.hashUnencodedChars(source);
+		Entry entry;
+		try {
+			entry = cache.get(key, () -> load(source));
+		} catch (ExecutionError e) {
+			throw (Error) e.getCause();
+		} catch (UncheckedExecutionException e) {
+			throw (RuntimeException) e.getCause();
+		} catch (ExecutionException e) {
+			// parsing throws no checked exceptions
+			throw new IllegalStateException(e.getCause());
+		}
+		if (!entry.source.equals(source)) {
+			return new HtmlParser(source).parseDoc();
+		}
+		return entry.doc;
+	}
+
+	/**
+	 * Hit, miss and eviction counts since the cache was created.
+	 */
+	public CacheStats stats() {
+		return cache.stats();
+	}
+
+	public long size() {
+		return cache.size();
+	}
+
+	public void invalidateAll() {
+		cache.invalidateAll();
+	}
+
+	private static Entry load(String source) {
+		DocNode doc = new HtmlParser(source).parseDoc();
+		long weight = 40 + 2L * source.length() + share(doc);
+		return new Entry(source, doc, (int) Math.min(weight, Integer.MAX_VALUE));
+	}
+
+	/**
+	 * Freezes the document and returns the estimated size of its nodes.
+	 */
+	private static long share(DocNode doc) {
+		long weight = 0;
+		Deque<ASTNode> stack = new ArrayDeque<>(doc.getChildren());
+		while (!stack.isEmpty()) {
+			ASTNode node = stack.pop();
+			node.shared = true;
+			if (node instanceof TextNode) {
+				weight += TEXT_BYTES;
+				continue;
+			}
+			ElementNode element = (ElementNode) node;
+			weight += ELEMENT_BYTES + ATTRIBUTE_BYTES * element.getAttributes().size();
+			if (element.getCloseTag() != null) {
+				weight += CLOSE_TAG_BYTES;
+			}
+			element.share();
+			stack.addAll(element.getChildren());
+		}
+		doc.setChildren(Collections.unmodifiableList(doc.getChildren()));
+		doc.shared = true;
+		return weight;
+	}
+
+	private static final class Entry {
+		final String source;
+		final DocNode doc;
+		final int weight;
+
+		Entry(String source, DocNode doc, int weight) {
+			this.source = source;
+			this.doc = doc;
+			this.weight = weight;
+		}
+	}
+}
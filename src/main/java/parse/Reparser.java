@@ -0,0 +1,149 @@
+package parse;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Updates a document after edits of its source. Only the content of the smallest element enclosing
+ * all edits is parsed again and only the nodes after it are moved by the length change. All nodes
+ * slice their values through the {@link SharedSource} of the document, which is swapped to the new
+ * source, so nodes before the edits are not touched at all. Edits the content parse cannot contain,
+ * edits at the top level and lazy documents get a full parse.
+ */
+class Reparser {
+
+	private Reparser() {
+	}
+
+	static DocNode reparse(DocNode doc, CharSequence source, List<TextEdit> edits) {
+		doc.checkNotShared();
+		if (edits.isEmpty()) {
+			return doc;
+		}
+		TextEdit.checkOrder(edits, source.length() - delta(edits));
+		int from = edits.get(0).start();
+		int to = edits.get(edits.size() - 1).end();
+		int delta = delta(edits);
+
+		ElementNode element = enclosing(doc, from, to);
+		if (element == null) {
+			return new HtmlParser(source).parseDoc();
+		}
+
+		// documents not parsed with a shared source get one on their first reparse
+		boolean adopt = doc.source == null;
+		SharedSource shared = adopt ? new SharedSource(source) : doc.source;
+		List<ASTNode> children;
+		try {
+			HtmlParser parser = new HtmlParser(source, element.contentStart(), element.contentEnd() + delta).sliceFrom(shared);
+			children = parser.parseNodeList(element);
+			if (!parser.atEnd()) {
+				return new HtmlParser(source).parseDoc();
+			}
+		} catch (AssertionError e) {
+			// the edit reaches beyond the element, let the full parse decide
+			return new HtmlParser(source).parseDoc();
+		}
+
+		element.initChildren(children);
+		moveFollowing(doc, element, delta, shared, adopt);
+		shared.swap(source);
+		doc.source = shared;
+		doc.dropIndex();
+		return doc;
+	}
+
+	private static int delta(List<TextEdit> edits) {
+		int delta = 0;
+		for (TextEdit edit : edits) {
+			delta += edit.delta();
+		}
+		return delta;
+	}
+
+	/**
+	 * The innermost element whose content contains the range, or null.
+	 */
+	private static ElementNode enclosing(DocNode doc, int from, int to) {
+		List<ASTNode> children = doc.getChildren();
+		if (children.isEmpty() || children.get(0) instanceof ElementNode && ((ElementNode) children.get(0)).isLazy()) {
+			return null;
+		}
+		ElementNode ret = null;
+		while (true) {
+			ElementNode next = null;
+			for (int c = childBefore(children, from); c < children.size() && children.get(c).start() < to; c++) {
+				ASTNode child = children.get(c);
+				if (child instanceof ElementNode) {
+					ElementNode element = (ElementNode) child;
+					if (element.getCloseTag() != null && element.contentStart() <= from && to <= element.contentEnd()) {
+						next = element;
+						break;
+					}
+				}
+			}
+			if (next == null) {
+				return ret;
+			}
+			ret = next;
+			children = next.getChildren();
+		}
+	}
+
+	/**
+	 * Index of the last child starting at or before the offset, 0 if there is none.
+	 */
+	private static int childBefore(List<ASTNode> children, int offset) {
+		int lo = 0;
+		int hi = children.size() - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (children.get(mid).start() <= offset) {
+				lo = mid;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * Moves the close tag of the element and everything following it in the document by delta. Adopting
+	 * a shared source points all other nodes to it as well, once per document.
+	 */
+	private static void moveFollowing(DocNode doc, ElementNode element, int delta, SharedSource shared, boolean adopt) {
+		ElementNode node = element;
+		while (true) {
+			if (adopt) {
+				// the start tag stays in place
+				node.shift(0, shared);
+			}
+			node.getCloseTag().shift(delta, shared);
+			ElementNode parent = node.getParent();
+			List<ASTNode> siblings = parent == null ? doc.getChildren() : parent.getChildren();
+			int index = siblings.indexOf(node);
+			if (adopt) {
+				shift(siblings.subList(0, index), 0, shared);
+			}
+			if (delta != 0 || adopt) {
+				shift(siblings.subList(index + 1, siblings.size()), delta, shared);
+			}
+			if (parent == null) {
+				return;
+			}
+			node = parent;
+		}
+	}
+
+	private static void shift(List<ASTNode> nodes, int delta, CharSequence source) {
+		Deque<ASTNode> stack = new ArrayDeque<>(nodes);
+		while (!stack.isEmpty()) {
+			ASTNode next = stack.pop();
+			next.shift(delta, source);
+			if (next instanceof ElementNode) {
+				stack.addAll(((ElementNode) next).getChildren());
+			}
+		}
+	}
+}
@@ -0,0 +1,211 @@
+package parse;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Collects changes to the source of a parsed document by node offsets and writes the result in one
+ * pass, copying the unchanged spans between changes from the source. Changes may not overlap; several
+ * insertions at one offset are written in the order they were queued.
+ */
+public class Rewriter {
+
+	private static final Comparator<TextEdit> ORDER = Comparator.comparingInt(TextEdit::start).thenComparingInt(TextEdit::end);
+
+	private final CharSequence source;
+	private final List<TextEdit> edits = new ArrayList<>();
+	private boolean sorted = true;
+
+	public Rewriter(CharSequence source) {
+		this.source = source;
+	}
+
+	public Rewriter replace(ASTNode node, String text) {
+		return replace(node.start(), node.end(), text);
+	}
+
+	public Rewriter insertBefore(ASTNode node, String text) {
+		return replace(node.start(), node.start(), text);
+	}
+
+	public Rewriter insertAfter(ASTNode node, String text) {
+		return replace(node.end(), node.end(), text);
+	}
+
+	public Rewriter remove(ASTNode node) {
+		return replace(node.start(), node.end(), "");
+	}
+
+	public Rewriter replace(int start, int end, String text) {
+		TextEdit edit = new TextEdit(start, end, text);
+		if (!edits.isEmpty() && ORDER.compare(edits.get(edits.size() - 1), edit) > 0) {
+			sorted = false;
+		}
+		edits.add(edit);
+		return this;
+	}
+
+	/**
+	 * The queued changes in source order, e.g. for {@link HtmlParser#reparse(DocNode, CharSequence, List)}.
+	 *
+	 * @throws IllegalArgumentException if changes overlap
+	 */
+	public List<TextEdit> edits() {
+		if (!sorted) {
+			// stable, so insertions at one offset stay in queue order
+			edits.sort(ORDER);
+			sorted = true;
+		}
+		TextEdit.checkOrder(edits, source.length());
+		return edits;
+	}
+
+	public String rewrite() {
+		StringBuilder sb = new StringBuilder(source.length() + 16);
+		writeTo(sb);
+		return sb.toString();
+	}
+
+	public void writeTo(StringBuilder out) {
+		try {
+			write(out);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	public void writeTo(Writer out) throws IOException {
+		write(out);
+	}
+
+	/**
+	 * Encodes the output to the channel in one pass of the encoder, so charsets writing a byte order mark
+	 * or keeping state write the output as a whole. Spans of a mapped UTF-8 file are written as bytes
+	 * without decoding.
+	 */
+	public void writeTo(WritableByteChannel out, Charset charset) throws IOException {
+		boolean raw = source instanceof ByteCharSequence && charset.equals(StandardCharsets.UTF_8);
+		Encoding encoding = new Encoding(charset.newEncoder(), out);
+		int pos = 0;
+		for (TextEdit edit : edits()) {
+			copy(encoding, raw, pos, edit.start());
+			String replacement = edit.getReplacement();
+			encoding.encode(replacement, 0, replacement.length(), false);
+			pos = edit.end();
+		}
+		copy(encoding, raw, pos, source.length());
+		encoding.encode("", 0, 0, true);
+	}
+
+	private void copy(Encoding encoding, boolean raw, int from, int to) throws IOException {
+		if (raw) {
+			encoding.drain();
+			writeFully(encoding.out, ((ByteCharSequence) source).bytes(from, to));
+		} else {
+			encoding.encode(source, from, to, false);
+		}
+	}
+
+	private void write(Appendable out) throws IOException {
+		int pos = 0;
+		for (TextEdit edit : edits()) {
+			copy(out, pos, edit.start());
+			out.append(edit.getReplacement());
+			pos = edit.end();
+		}
+		copy(out, pos, source.length());
+	}
+
+	private void copy(Appendable out, int from, int to) throws IOException {
+		if (from == to) {
+			return;
+		}
+		if (source instanceof String && out instanceof Writer) {
+			((Writer) out).write((String) source, from, to - from);
+		} else if (source instanceof ByteCharSequence) {
+			// decodes the bytes
+			out.append(source.subSequence(from, to));
+		} else {
+			out.append(source, from, to);
+		}
+	}
+
+	/**
+	 * An encoder fed segment by segment, carrying chars it cannot encode yet, the high surrogate of a
+	 * pair split between segments, over to the next one.
+	 */
+	private static final class Encoding {
+		final CharsetEncoder encoder;
+		final WritableByteChannel out;
+		final ByteBuffer buffer = ByteBuffer.allocate(8192);
+		CharBuffer carry;
+
+		Encoding(CharsetEncoder encoder, WritableByteChannel out) {
+			this.encoder = encoder;
+			this.out = out;
+		}
+
+		/**
+		 * @param last whether this is the end of the output, flushes the encoder
+		 */
+		void encode(CharSequence chars, int from, int to, boolean last) throws IOException {
+			CharBuffer in = CharBuffer.wrap(chars, from, to);
+			if (carry != null) {
+				CharBuffer joined = CharBuffer.allocate(carry.remaining() + 1);
+				joined.put(carry);
+				if (in.hasRemaining()) {
+					joined.put(in.get());
+				}
+				joined.flip();
+				carry = null;
+				encode(joined, last && !in.hasRemaining());
+			}
+			encode(in, last);
+			if (last) {
+				while (encoder.flush(buffer).isOverflow()) {
+					drain();
+				}
+				drain();
+			}
+		}
+
+		private void encode(CharBuffer in, boolean last) throws IOException {
+			while (true) {
+				CoderResult result = encoder.encode(in, buffer, last);
+				if (result.isError()) {
+					result.throwException();
+				}
+				if (result.isUnderflow()) {
+					break;
+				}
+				drain();
+			}
+			if (in.hasRemaining()) {
+				carry = in;
+			}
+		}
+
+		void drain() throws IOException {
+			buffer.flip();
+			writeFully(out, buffer);
+			buffer.clear();
+		}
+	}
+
+	private static void writeFully(WritableByteChannel out, ByteBuffer bytes) throws IOException {
+		while (bytes.hasRemaining()) {
+			out.write(bytes);
+		}
+	}
+}
@@ -0,0 +1,269 @@
+package parse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import parse.Selector.Compound;
+
+/**
+ * Matches selectors while the document is parsed and builds nodes only for matching subtrees.
+ * Elsewhere it keeps just the open tag names and, per open element and selector chain, two bitsets:
+ * the compounds matched by the element itself and those matched by it or an ancestor. An element
+ * matches compound k if the compound's own conditions hold and compound k + 1 was matched by the
+ * parent (child combinator) or an ancestor (descendant combinator). Attributes are compared in place
+ * in the source, so skipped elements allocate nothing.
+ */
+class SelectSink implements TokenSink {
+
+	private final HtmlLexer lexer;
+	private final TreeSink tree;
+	private final Compound[][] chains;
+	// selector of each chain
+	private final int[] owners;
+	private final List<List<ElementNode>> results = new ArrayList<>();
+
+	// open elements, level 0 is the document
+	private String[] names = new String[16];
+	// symbol and span of each open name, for close tag checks
+	private int[] nameSpans = new int[3 * 16];
+	private int[] positions = new int[16];
+	private long[] self;
+	private long[] any;
+	private int depth;
+
+	// the start tag being parsed
+	private int tagOpen;
+	private int tagName;
+	private int[] attribNames = new int[8];
+	private int[] attribValues = new int[8];
+	private int attribCount;
+
+	// level of the outermost materialized element, -1 outside of matches
+	private int treeDepth = -1;
+	private final long[] matched;
+
+	SelectSink(HtmlLexer lexer, Selector[] selectors) {
+		this.lexer = lexer;
+		this.tree = new TreeSink(lexer);
+		List<Compound[]> chains = new ArrayList<>();
+		List<Integer> owners = new ArrayList<>();
+		for (int s = 0; s < selectors.length; s++) {
+			results.add(new ArrayList<>());
+			for (Compound[] chain : selectors[s].chains()) {
+				if (chain.length > Long.SIZE) {
+					throw new IllegalArgumentException("too many compounds in selector: " + selectors[s]);
+				}
+				chains.add(chain);
+				owners.add(s);
+			}
+		}
+		this.chains = chains.toArray(new Compound[0][]);
+		this.owners = owners.stream().mapToInt(Integer::intValue).toArray();
+		this.self = new long[16 * this.chains.length];
+		this.any = new long[16 * this.chains.length];
+		this.matched = new long[(selectors.length + 63) / 64];
+	}
+
+	List<List<ElementNode>> result() {
+		return results;
+	}
+
+	@Override
+	public void text(int text) {
+		if (treeDepth != -1) {
+			tree.text(text);
+		}
+	}
+
+	@Override
+	public void comment(int comment) {
+		if (treeDepth != -1) {
+			tree.comment(comment);
+		}
+	}
+
+	@Override
+	public void startTag(int open, int name) {
+		tagOpen = open;
+		tagName = name;
+		attribCount = 0;
+	}
+
+	@Override
+	public void attribute(int name, int value) {
+		if (attribCount == attribNames.length) {
+			attribNames = Arrays.copyOf(attribNames, attribCount * 2);
+			attribValues = Arrays.copyOf(attribValues, attribCount * 2);
+		}
+		attribNames[attribCount] = name;
+		attribValues[attribCount] = value;
+		attribCount++;
+	}
+
+	@Override
+	public void endStartTag(int close, boolean empty) {
+		int parent = depth;
+		int position = ++positions[parent];
+		int level = parent + 1;
+		if (level == names.length) {
+			names = Arrays.copyOf(names, level * 2);
+			nameSpans = Arrays.copyOf(nameSpans, level * 6);
+			positions = Arrays.copyOf(positions, level * 2);
+			self = Arrays.copyOf(self, level * 2 * chains.length);
+			any = Arrays.copyOf(any, level * 2 * chains.length);
+		}
+
+		Arrays.fill(matched, 0);
+		boolean match = false;
+		for (int c = 0; c < chains.length; c++) {
+			Compound[] chain = chains[c];
+			long parentSelf = self[parent * chains.length + c];
+			long parentAny = any[parent * chains.length + c];
+			long bits = 0;
+			for (int k = 0; k < chain.length; k++) {
+				boolean left = k == chain.length - 1
+						|| ((chain[k].child ? parentSelf : parentAny) & 1L << (k + 1)) != 0;
+				if (left && matches(chain[k], position)) {
+					bits |= 1L << k;
+				}
+			}
+			self[level * chains.length + c] = bits;
+			any[level * chains.length + c] = parentAny | bits;
+			if ((bits & 1) != 0) {
+				matched[owners[c] / 64] |= 1L << owners[c];
+				match = true;
+			}
+		}
+
+		if (match && treeDepth == -1) {
+			treeDepth = level;
+			tree.begin(null);
+		}
+		if (treeDepth != -1) {
+			tree.startTag(tagOpen, tagName);
+			for (int a = 0; a < attribCount; a++) {
+				tree.attribute(attribNames[a], attribValues[a]);
+			}
+			tree.endStartTag(close, empty);
+			if (match) {
+				for (int s = 0; s < results.size(); s++) {
+					if ((matched[s / 64] & 1L << s) != 0) {
+						results.get(s).add(tree.last());
+					}
+				}
+			}
+		}
+
+		if (empty) {
+			closed(level);
+		} else {
+			names[level] = lexer.name(tagName);
+			nameSpans[3 * level] = lexer.symbol(tagName);
+			nameSpans[3 * level + 1] = lexer.start(tagName);
+			nameSpans[3 * level + 2] = lexer.end(tagName);
+			positions[level] = 0;
+			depth = level;
+		}
+	}
+
+	@Override
+	public void endTag(int open, int name, int close) {
+		if (treeDepth != -1) {
+			tree.endTag(open, name, close);
+		} else if (!lexer.sameName(name, nameSpans[3 * depth], nameSpans[3 * depth + 1], nameSpans[3 * depth + 2], names[depth])) {
+			throw HtmlParser.wrongCloseTag(names[depth], lexer.text(name), lexer.start(open));
+		}
+		closed(depth--);
+	}
+
+	private void closed(int level) {
+		if (level == treeDepth) {
+			tree.end();
+			treeDepth = -1;
+		}
+	}
+
+	@Override
+	public void end() {
+
+	}
+
+	private boolean matches(Compound compound, int position) {
+		if (compound.tag != null && !lexer.contentEquals(tagName, compound.tag)) {
+			return false;
+		}
+		if (compound.id != null && !valueEquals(attribute("id"), compound.id)) {
+			return false;
+		}
+		if (compound.classes.length > 0) {
+			int classNames = attribute("class");
+			if (classNames == -1 || attribValues[classNames] == -1) {
+				return false;
+			}
+			for (String className : compound.classes) {
+				if (!hasClass(attribValues[classNames], className)) {
+					return false;
+				}
+			}
+		}
+		for (int a = 0; a < compound.attribNames.length; a++) {
+			int attrib = attribute(compound.attribNames[a]);
+			if (attrib == -1 || compound.attribValues[a] != null && !valueEquals(attrib, compound.attribValues[a])) {
+				return false;
+			}
+		}
+		return !compound.nth || compound.nthMatches(position);
+	}
+
+	/**
+	 * @return the first attribute of the current tag with the name, or -1
+	 */
+	private int attribute(String name) {
+		for (int a = 0; a < attribCount; a++) {
+			if (lexer.contentEquals(attribNames[a], name)) {
+				return a;
+			}
+		}
+		return -1;
+	}
+
+	private boolean valueEquals(int attrib, String expected) {
+		if (attrib == -1 || attribValues[attrib] == -1) {
+			return false;
+		}
+		int value = attribValues[attrib];
+		int from = lexer.start(value) + 1;
+		return lexer.end(value) - 1 - from == expected.length() && regionMatches(from, expected);
+	}
+
+	private boolean hasClass(int value, String className) {
+		CharSequence s = lexer.source();
+		int to = lexer.end(value) - 1;
+		int from = lexer.start(value) + 1;
+		while (from < to) {
+			while (from < to && s.charAt(from) <= ' ') {
+				from++;
+			}
+			int end = from;
+			while (end < to && s.charAt(end) > ' ') {
+				end++;
+			}
+			if (end - from == className.length() && regionMatches(from, className)) {
+				return true;
+			}
+			from = end;
+		}
+		return false;
+	}
+
+	private boolean regionMatches(int from, String expected) {
+		CharSequence s = lexer.source();
+		for (int j = 0; j < expected.length(); j++) {
+			if (s.charAt(from + j) != expected.charAt(j)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
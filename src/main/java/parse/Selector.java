@@ -0,0 +1,449 @@
+package parse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A compiled CSS selector. Supports type selectors and {@code *}, {@code #id}, {@code .class},
+ * {@code [attr]}, {@code [attr=value]}, {@code :nth-child(an+b)}, the descendant and child
+ * combinators, and groups separated by commas. Compile once and reuse, a selector is immutable.
+ */
+public final class Selector {
+
+	private final String css;
+	// alternatives of the group, each a chain of compounds from right to left
+	private final Compound[][] chains;
+
+	private Selector(String css, Compound[][] chains) {
+		this.css = css;
+		this.chains = chains;
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the selector is malformed or unsupported
+	 */
+	public static Selector compile(String css) {
+		return new SelectorParser(css).parse();
+	}
+
+	/**
+	 * Whether the element matches. Top-level elements have no parent to count siblings in,
+	 * so they only match {@code :nth-child} when selected from their {@link DocNode}.
+	 */
+	public boolean matches(ElementNode element) {
+		return matches(element, -1, null);
+	}
+
+	/**
+	 * All matching elements of the document in document order. Uses the document index
+	 * if the selector names an id, class or tag on its rightmost element.
+	 */
+	public List<ElementNode> select(DocNode doc) {
+		if (chains.length == 1) {
+			List<ElementNode> candidates = candidates(chains[0][0], doc.index());
+			if (candidates != null) {
+				List<ElementNode> ret = new ArrayList<>();
+				for (int c = 0; c < candidates.size(); c++) {
+					if (matches(candidates.get(c), -1, doc)) {
+						ret.add(candidates.get(c));
+					}
+				}
+				return ret;
+			}
+		}
+		return selectAll(doc, this).get(0);
+	}
+
+	/**
+	 * All matching descendants of the element in document order.
+	 */
+	public List<ElementNode> select(ElementNode root) {
+		Selector[] selectors = {this};
+		List<List<ElementNode>> results = Collections.singletonList(new ArrayList<>());
+		walk(root.getChildren(), null, selectors, results);
+		return results.get(0);
+	}
+
+	/**
+	 * Matches several selectors in one traversal of the document.
+	 *
+	 * @return the matches of each selector in document order, in the order of the selectors
+	 */
+	public static List<List<ElementNode>> selectAll(DocNode doc, Selector... selectors) {
+		List<List<ElementNode>> results = new ArrayList<>(selectors.length);
+		for (int s = 0; s < selectors.length; s++) {
+			results.add(new ArrayList<>());
+		}
+		walk(doc.getChildren(), doc, selectors, results);
+		return results;
+	}
+
+	private static List<ElementNode> candidates(Compound compound, DocIndex index) {
+		if (compound.id != null) {
+			return index.allById(compound.id);
+		}
+		if (compound.classes.length > 0) {
+			return index.byClass(compound.classes[0]);
+		}
+		if (compound.tag != null) {
+			return index.byTag(compound.tag);
+		}
+		return null;
+	}
+
+	private static void walk(List<ASTNode> top, DocNode doc, Selector[] selectors, List<List<ElementNode>> results) {
+		// per open level: the child list, the next child and the elements seen so far for nth-child
+		List<List<ASTNode>> lists = new ArrayList<>();
+		int[] next = new int[16];
+		int[] positions = new int[16];
+		lists.add(top);
+		int depth = 0;
+		while (depth >= 0) {
+			List<ASTNode> list = lists.get(depth);
+			if (next[depth] == list.size()) {
+				lists.remove(depth--);
+				continue;
+			}
+			ASTNode node = list.get(next[depth]++);
+			if (!(node instanceof ElementNode)) {
+				continue;
+			}
+
+			ElementNode element = (ElementNode) node;
+			int position = ++positions[depth];
+			for (int s = 0; s < selectors.length; s++) {
+				if (selectors[s].matches(element, position, doc)) {
+					results.get(s).add(element);
+				}
+			}
+
+			if (!element.getChildren().isEmpty()) {
+				if (++depth == next.length) {
+					next = Arrays.copyOf(next, depth * 2);
+					positions = Arrays.copyOf(positions, depth * 2);
+				}
+				lists.add(element.getChildren());
+				next[depth] = 0;
+				positions[depth] = 0;
+			}
+		}
+	}
+
+	/**
+	 * @param position the 1-based position among the element siblings if known, otherwise -1
+	 */
+	private boolean matches(ElementNode element, int position, DocNode doc) {
+		for (Compound[] chain : chains) {
+			if (matches(chain, 0, element, position, doc)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean matches(Compound[] chain, int c, ElementNode element, int position, DocNode doc) {
+		Compound compound = chain[c];
+		if (!compound.matches(element, position, doc)) {
+			return false;
+		}
+		if (c == chain.length - 1) {
+			return true;
+		}
+		ElementNode parent = element.getParent();
+		if (compound.child) {
+			return parent != null && matches(chain, c + 1, parent, -1, doc);
+		}
+		for (; parent != null; parent = parent.getParent()) {
+			if (matches(chain, c + 1, parent, -1, doc)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	Compound[][] chains() {
+		return chains;
+	}
+
+	@Override
+	public String toString() {
+		return css;
+	}
+
+	/**
+	 * The conditions on a single element.
+	 */
+	static final class Compound {
+		String tag;
+		String id;
+		String[] classes = new String[0];
+		String[] attribNames = new String[0];
+		// null for a presence test
+		String[] attribValues = new String[0];
+		boolean nth;
+		int nthA;
+		int nthB;
+		// whether the next compound of the chain has to match the parent rather than any ancestor
+		boolean child;
+
+		boolean matches(ElementNode element, int position, DocNode doc) {
+			if (tag != null && !tag.equals(element.getTagName())) {
+				return false;
+			}
+			if (id != null && !id.equals(element.getAttributeValue("id"))) {
+				return false;
+			}
+			if (classes.length > 0) {
+				String classNames = element.getAttributeValue("class");
+				if (classNames == null) {
+					return false;
+				}
+				for (String className : classes) {
+					if (!hasClass(classNames, className)) {
+						return false;
+					}
+				}
+			}
+			for (int a = 0; a < attribNames.length; a++) {
+				AttributeNode attrib = element.findAttribute(attribNames[a]);
+				if (attrib == null || attribValues[a] != null && !attribValues[a].equals(attrib.getValue())) {
+					return false;
+				}
+			}
+			if (nth) {
+				if (position == -1) {
+					position = position(element, doc);
+				}
+				if (position == -1 || !nthMatches(position)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		boolean nthMatches(int position) {
+			int offset = position - nthB;
+			if (nthA == 0) {
+				return offset == 0;
+			}
+			return offset % nthA == 0 && offset / nthA >= 0;
+		}
+
+		private static int position(ElementNode element, DocNode doc) {
+			List<ASTNode> siblings = element.getParent() != null ? element.getParent().getChildren()
+					: doc != null ? doc.getChildren() : null;
+			if (siblings == null) {
+				return -1;
+			}
+			int position = 0;
+			for (int s = 0; s < siblings.size(); s++) {
+				ASTNode sibling = siblings.get(s);
+				if (sibling instanceof ElementNode) {
+					position++;
+					if (sibling == element) {
+						return position;
+					}
+				}
+			}
+			return -1;
+		}
+
+		private static boolean hasClass(String classNames, String className) {
+			int length = className.length();
+			for (int from = classNames.indexOf(className); from != -1; from = classNames.indexOf(className, from + 1)) {
+				if ((from == 0 || classNames.charAt(from - 1) <= ' ')
+						&& (from + length == classNames.length() || classNames.charAt(from + length) <= ' ')) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	private static final class SelectorParser {
+		private final String css;
+		private int pos;
+
+		SelectorParser(String css) {
+			this.css = css;
+		}
+
+		Selector parse() {
+			List<Compound[]> chains = new ArrayList<>();
+			do {
+				chains.add(chain());
+			} while (accept(','));
+			if (pos != css.length()) {
+				throw error("unexpected '" + css.charAt(pos) + "'");
+			}
+			return new Selector(css, chains.toArray(new Compound[0][]));
+		}
+
+		private Compound[] chain() {
+			List<Compound> compounds = new ArrayList<>();
+			List<Boolean> children = new ArrayList<>();
+			skipWS();
+			compounds.add(compound());
+			while (true) {
+				boolean space = skipWS();
+				boolean child = accept('>');
+				if (!child && (!space || pos == css.length() || css.charAt(pos) == ',')) {
+					break;
+				}
+				skipWS();
+				children.add(child);
+				compounds.add(compound());
+			}
+			// right to left, each compound knows the combinator to its left
+			Compound[] chain = new Compound[compounds.size()];
+			for (int c = 0; c < chain.length; c++) {
+				chain[c] = compounds.get(chain.length - 1 - c);
+				chain[c].child = c + 1 < chain.length && children.get(chain.length - 2 - c);
+			}
+			return chain;
+		}
+
+		private Compound compound() {
+			Compound compound = new Compound();
+			int start = pos;
+			if (accept('*')) {
+				// any element
+			} else if (pos < css.length() && isNameChar(css.charAt(pos))) {
+				compound.tag = name();
+			}
+			while (pos < css.length()) {
+				char c = css.charAt(pos);
+				if (c == '#') {
+					pos++;
+					compound.id = name();
+				} else if (c == '.') {
+					pos++;
+					compound.classes = append(compound.classes, name());
+				} else if (c == '[') {
+					pos++;
+					skipWS();
+					compound.attribNames = append(compound.attribNames, name());
+					skipWS();
+					String value = null;
+					if (accept('=')) {
+						skipWS();
+						value = value();
+						skipWS();
+					}
+					compound.attribValues = append(compound.attribValues, value);
+					expect(']');
+				} else if (c == ':') {
+					pos++;
+					if (!"nth-child".equals(name())) {
+						throw error("only :nth-child is supported");
+					}
+					expect('(');
+					skipWS();
+					nth(compound);
+					skipWS();
+					expect(')');
+				} else {
+					break;
+				}
+			}
+			if (pos == start) {
+				throw error("selector expected");
+			}
+			return compound;
+		}
+
+		private void nth(Compound compound) {
+			compound.nth = true;
+			int end = css.indexOf(')', pos);
+			if (end == -1) {
+				throw error("')' expected");
+			}
+			String expr = css.substring(pos, end).trim().replace(" ", "");
+			pos = end;
+			try {
+				if (expr.equals("odd")) {
+					compound.nthA = 2;
+					compound.nthB = 1;
+				} else if (expr.equals("even")) {
+					compound.nthA = 2;
+					compound.nthB = 0;
+				} else {
+					int n = expr.indexOf('n');
+					if (n == -1) {
+						compound.nthB = Integer.parseInt(expr);
+					} else {
+						String a = expr.substring(0, n);
+						compound.nthA = a.isEmpty() || a.equals("+") ? 1 : a.equals("-") ? -1 : Integer.parseInt(a);
+						String b = expr.substring(n + 1);
+						compound.nthB = b.isEmpty() ? 0 : Integer.parseInt(b.startsWith("+") ? b.substring(1) : b);
+					}
+				}
+			} catch (NumberFormatException e) {
+				throw error("bad :nth-child expression '" + expr + "'");
+			}
+		}
+
+		private String name() {
+			int start = pos;
+			while (pos < css.length() && isNameChar(css.charAt(pos))) {
+				pos++;
+			}
+			if (pos == start) {
+				throw error("name expected");
+			}
+			return css.substring(start, pos);
+		}
+
+		private String value() {
+			if (pos < css.length() && (css.charAt(pos) == '"' || css.charAt(pos) == '\'')) {
+				char quote = css.charAt(pos);
+				int end = css.indexOf(quote, pos + 1);
+				if (end == -1) {
+					throw error("unterminated string");
+				}
+				String value = css.substring(pos + 1, end);
+				pos = end + 1;
+				return value;
+			}
+			return name();
+		}
+
+		private static boolean isNameChar(char c) {
+			return Character.isLetterOrDigit(c) || c == '-' || c == '_';
+		}
+
+		private boolean skipWS() {
+			int start = pos;
+			while (pos < css.length() && css.charAt(pos) <= ' ') {
+				pos++;
+			}
+			return pos > start;
+		}
+
+		private boolean accept(char c) {
+			if (pos < css.length() && css.charAt(pos) == c) {
+				pos++;
+				return true;
+			}
+			return false;
+		}
+
+		private void expect(char c) {
+			if (!accept(c)) {
+				throw error("'" + c + "' expected");
+			}
+		}
+
+		private IllegalArgumentException error(String message) {
+			return new IllegalArgumentException(message + " at " + pos + " in selector: " + css);
+		}
+
+		private static String[] append(String[] array, String value) {
+			String[] ret = Arrays.copyOf(array, array.length + 1);
+			ret[array.length] = value;
+			return ret;
+		}
+	}
+}
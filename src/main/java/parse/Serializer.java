@@ -0,0 +1,284 @@
+package parse;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Writes documents parsed from a source back out. Nodes that were not changed since parsing are
+ * copied from the source span between their offsets. Elements whose children were replaced keep
+ * their tags from the source and write their children one by one, created nodes are rendered from
+ * their values. Rendered markup goes through a buffer that is reused across calls, so a serializer
+ * is not thread-safe.
+ */
+public class Serializer {
+
+	private static final int FLUSH_SIZE = 8192;
+
+	private final CharSequence source;
+	private final StringBuilder buffer = new StringBuilder(FLUSH_SIZE);
+	private final char[] chars = new char[FLUSH_SIZE];
+	private Writer out;
+
+	/**
+	 * @param source the source the documents were parsed from
+	 */
+	public Serializer(CharSequence source) {
+		this.source = source;
+	}
+
+	public String toString(DocNode doc) {
+		StringWriter writer = new StringWriter(source.length());
+		try {
+			write(doc, writer);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return writer.toString();
+	}
+
+	public void write(DocNode doc, Writer out) throws IOException {
+		write(doc.getChildren(), 0, source.length(), out);
+	}
+
+	public void write(ASTNode node, Writer out) throws IOException {
+		write(Collections.singletonList(node), -1, -1, out);
+	}
+
+	public void write(DocNode doc, OutputStream out, Charset charset) throws IOException {
+		Writer writer = new OutputStreamWriter(out, charset);
+		write(doc, writer);
+		writer.flush();
+	}
+
+	/**
+	 * Encodes the document to the channel, which stays open.
+	 */
+	public void write(DocNode doc, WritableByteChannel out, Charset charset) throws IOException {
+		Writer writer = Channels.newWriter(out, charset.newEncoder(), FLUSH_SIZE);
+		write(doc, writer);
+		writer.flush();
+	}
+
+	private void write(List<ASTNode> nodes, int from, int to, Writer out) throws IOException {
+		this.out = out;
+		buffer.setLength(0);
+		try {
+			// nodes to write, gaps between them and elements whose close tag is due
+			Deque<Object> stack = new ArrayDeque<>();
+			push(stack, nodes, from, to);
+			while (!stack.isEmpty()) {
+				Object next = stack.pop();
+				if (next instanceof EndTag) {
+					writeEnd(((EndTag) next).element);
+					continue;
+				}
+				if (next instanceof Gap) {
+					Gap gap = (Gap) next;
+					if (markupOnly(gap.from, gap.to)) {
+						copy(gap.from, gap.to);
+					}
+					continue;
+				}
+
+				ASTNode node = (ASTNode) next;
+				if (!node.created && !node.changed) {
+					copy(node.start(), node.end());
+				} else if (node instanceof TextNode) {
+					append(((TextNode) node).text());
+				} else if (node instanceof ElementNode) {
+					ElementNode element = (ElementNode) node;
+					writeStart(element);
+					if (hasEnd(element)) {
+						stack.push(new EndTag(element));
+						if (element.created || !element.hasCloseTag()) {
+							push(stack, element.getChildren(), -1, -1);
+						} else {
+							push(stack, element.getChildren(), element.contentStart(), element.contentEnd());
+						}
+					}
+				}
+			}
+			flush();
+		} finally {
+			this.out = null;
+		}
+	}
+
+	/**
+	 * Pushes the nodes and the source gaps around nodes that were parsed, from and to bound the gaps
+	 * at the ends, -1 if there is no source around the nodes.
+	 */
+	private static void push(Deque<Object> stack, List<ASTNode> nodes, int from, int to) {
+		int end = to;
+		for (int n = nodes.size() - 1; n >= 0; n--) {
+			ASTNode node = nodes.get(n);
+			if (node.created) {
+				// the gap between the parsed neighbours is written before the created node
+				stack.push(node);
+				continue;
+			}
+			if (end != -1 && node.end() < end) {
+				stack.push(new Gap(node.end(), end));
+			}
+			stack.push(node);
+			end = node.start();
+		}
+		if (from != -1 && end != -1 && from < end) {
+			stack.push(new Gap(from, end));
+		}
+	}
+
+	/**
+	 * Comments and declarations are not part of the tree, a gap between parsed nodes is kept if it
+	 * holds only those. Anything else in a gap is a node that was removed.
+	 */
+	private boolean markupOnly(int from, int to) {
+		int pos = from;
+		while (pos < to) {
+			if (source.charAt(pos) != '<' || pos + 1 >= to) {
+				return false;
+			}
+			char c = source.charAt(pos + 1);
+			String close;
+			if (c == '!' && pos + 3 < to && source.charAt(pos + 2) == '-' && source.charAt(pos + 3) == '-') {
+				close = "-->";
+			} else if (c == '!' || c == '?') {
+				close = ">";
+			} else {
+				return false;
+			}
+			int end = indexOf(close, pos + 2, to);
+			if (end == -1) {
+				return false;
+			}
+			pos = end + close.length();
+			// whitespace between declarations, outside of any element
+			while (pos < to && Character.isWhitespace(source.charAt(pos))) {
+				pos++;
+			}
+		}
+		return true;
+	}
+
+	private int indexOf(String s, int from, int to) {
+		outer:
+		for (int i = from; i <= to - s.length(); i++) {
+			for (int j = 0; j < s.length(); j++) {
+				if (source.charAt(i + j) != s.charAt(j)) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	private static boolean hasEnd(ElementNode element) {
+		return !element.getChildren().isEmpty() || !element.created && element.hasCloseTag();
+	}
+
+	private void writeStart(ElementNode element) throws IOException {
+		if (!element.created && element.hasCloseTag()) {
+			copy(element.start(), element.contentStart());
+			return;
+		}
+		append("<");
+		append(element.getTagName());
+		for (AttributeNode attrib : element.getAttributes()) {
+			append(" ");
+			append(attrib.getName());
+			if (attrib.getValue() != null) {
+				append("=\"");
+				append(attrib.getValue());
+				append("\"");
+			}
+		}
+		append(hasEnd(element) ? ">" : "/>");
+	}
+
+	private void writeEnd(ElementNode element) throws IOException {
+		if (!element.created && element.hasCloseTag()) {
+			copy(element.contentEnd(), element.end());
+		} else {
+			append("</");
+			append(element.getTagName());
+			append(">");
+		}
+	}
+
+	/**
+	 * Copies the span chunk by chunk, so neither the buffer nor decoded values grow with the span.
+	 */
+	private void copy(int from, int to) throws IOException {
+		boolean bytes = source instanceof ByteCharSequence;
+		for (int pos = from; pos < to; ) {
+			int end = Math.min(to, pos + FLUSH_SIZE);
+			if (bytes) {
+				// decodes whole UTF-8 sequences only
+				while (end < to && end > pos + 1 && (source.charAt(end) & 0xc0) == 0x80) {
+					end--;
+				}
+				buffer.append(source.subSequence(pos, end));
+			} else {
+				buffer.append(source, pos, end);
+			}
+			flushIfFull();
+			pos = end;
+		}
+	}
+
+	private void append(CharSequence chars) throws IOException {
+		if (chars.length() >= FLUSH_SIZE) {
+			flush();
+			out.append(chars);
+			return;
+		}
+		buffer.append(chars);
+		flushIfFull();
+	}
+
+	private void flushIfFull() throws IOException {
+		if (buffer.length() >= FLUSH_SIZE) {
+			flush();
+		}
+	}
+
+	private void flush() throws IOException {
+		int length = buffer.length();
+		for (int from = 0; from < length; from += chars.length) {
+			int n = Math.min(chars.length, length - from);
+			buffer.getChars(from, from + n, chars, 0);
+			out.write(chars, 0, n);
+		}
+		buffer.setLength(0);
+	}
+
+	private static final class Gap {
+		final int from;
+		final int to;
+
+		Gap(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+	}
+
+	private static final class EndTag {
+		final ElementNode element;
+
+		EndTag(ElementNode element) {
+			this.element = element;
+		}
+	}
+}
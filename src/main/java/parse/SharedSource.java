@@ -0,0 +1,38 @@
+package parse;
+
+/**
+ * The source all tokens of a document slice their values from. A reparse swaps the source underneath,
+ * so nodes it does not move need not be touched.
+ */
+final class SharedSource implements CharSequence {
+
+	private CharSequence source;
+
+	SharedSource(CharSequence source) {
+		this.source = source;
+	}
+
+	void swap(CharSequence source) {
+		this.source = source;
+	}
+
+	@Override
+	public int length() {
+		return source.length();
+	}
+
+	@Override
+	public char charAt(int index) {
+		return source.charAt(index);
+	}
+
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		return source.subSequence(start, end);
+	}
+
+	@Override
+	public String toString() {
+		return source.toString();
+	}
+}
@@ -0,0 +1,335 @@
+package parse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import parse.HtmlLexer.Token;
+import parse.HtmlLexer.TokenType;
+
+/**
+ * A parsed document stored in a file together with its source, to be loaded without lexing or parsing.
+ * The file holds the node offsets in document order, the names interned into a table and the source,
+ * as chars, or as bytes for documents parsed from a mapped file. Loading maps the file and builds the
+ * nodes straight from the offsets, values stay in the mapped source until requested.
+ */
+public final class Snapshot {
+
+	private static final int MAGIC = 0x48545331;
+	private static final int VERSION = 1;
+	private static final int BYTE_SOURCE = 1;
+	private static final int HEADER_INTS = 8;
+
+	private static final int ELEMENT = 0;
+	private static final int TEXT = 1;
+
+	private final DocNode document;
+	private final CharSequence source;
+
+	private Snapshot(DocNode document, CharSequence source) {
+		this.document = document;
+		this.source = source;
+	}
+
+	public DocNode getDocument() {
+		return document;
+	}
+
+	/**
+	 * The source the document slices its values from, backed by the mapped file.
+	 */
+	public CharSequence getSource() {
+		return source;
+	}
+
+	/**
+	 * Writes the document and the source it was parsed from.
+	 *
+	 * @throws IllegalArgumentException for lazy documents, which would have to be expanded, for documents
+	 * containing created nodes, which have no offsets, and for documents changed since parsing, which
+	 * the source no longer describes
+	 */
+	public static void write(DocNode doc, CharSequence source, Path file) throws IOException {
+		Writer writer = new Writer();
+		writer.nodes(doc.getChildren());
+
+		boolean bytes = source instanceof ByteCharSequence;
+		int[] header = {MAGIC, VERSION, bytes ? BYTE_SOURCE : 0, source.length(),
+				doc.getChildren().size(), writer.size, writer.symbols.size(), writer.symbolChars};
+		ByteBuffer tables = ByteBuffer.allocate(4 * (HEADER_INTS + writer.size + writer.symbols.size()) + 2 * writer.symbolChars);
+		IntBuffer ints = tables.asIntBuffer();
+		ints.put(header);
+		ints.put(writer.ints, 0, writer.size);
+		for (String symbol : writer.symbols) {
+			ints.put(symbol.length());
+		}
+		CharBuffer chars = tables.position(4 * ints.position()).slice().asCharBuffer();
+		for (String symbol : writer.symbols) {
+			chars.put(symbol);
+		}
+		tables.clear();
+
+		try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			writeFully(out, tables);
+			if (bytes) {
+				writeFully(out, ((ByteCharSequence) source).bytes(0, source.length()));
+			} else {
+				ByteBuffer buffer = ByteBuffer.allocate(8192);
+				for (int j = 0; j < source.length(); j++) {
+					if (!buffer.hasRemaining()) {
+						buffer.flip();
+						writeFully(out, buffer);
+						buffer.clear();
+					}
+					buffer.putChar(source.charAt(j));
+				}
+				buffer.flip();
+				writeFully(out, buffer);
+			}
+		}
+	}
+
+	private static void writeFully(FileChannel out, ByteBuffer bytes) throws IOException {
+		while (bytes.hasRemaining()) {
+			out.write(bytes);
+		}
+	}
+
+	/**
+	 * Maps a file written by {@link #write(DocNode, CharSequence, Path)}. The mapping lives as long as the
+	 * document or the source are referenced.
+	 */
+	public static Snapshot load(Path file) throws IOException {
+		ByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		if (buffer.capacity() < 4 * HEADER_INTS || buffer.getInt(0) != MAGIC) {
+			throw new IOException("not a document snapshot: " + file);
+		}
+		if (buffer.getInt(4) != VERSION) {
+			throw new IOException("unsupported snapshot version " + buffer.getInt(4) + ": " + file);
+		}
+		int flags = buffer.getInt(8);
+		int sourceLength = buffer.getInt(12);
+		int topCount = buffer.getInt(16);
+		int size = buffer.getInt(20);
+		int symbolCount = buffer.getInt(24);
+		int symbolChars = buffer.getInt(28);
+		boolean bytes = (flags & BYTE_SOURCE) != 0;
+		if (sourceLength < 0 || topCount < 0 || size < 0 || symbolCount < 0 || symbolChars < 0
+				|| 4L * (HEADER_INTS + size + symbolCount) + 2L * symbolChars + (bytes ? 1L : 2L) * sourceLength != buffer.capacity()) {
+			throw new IOException("truncated or corrupt document snapshot: " + file);
+		}
+
+		try {
+			int pos = 4 * (HEADER_INTS + size);
+			String[] symbols = new String[symbolCount];
+			CharBuffer chars = slice(buffer, pos + 4 * symbolCount, 2 * symbolChars).asCharBuffer();
+			for (int s = 0; s < symbolCount; s++) {
+				char[] symbol = new char[buffer.getInt(pos + 4 * s)];
+				chars.get(symbol);
+				symbols[s] = new String(symbol).intern();
+			}
+			pos += 4 * symbolCount + 2 * symbolChars;
+
+			CharSequence source;
+			if (bytes) {
+				source = new ByteCharSequence(slice(buffer, pos, sourceLength));
+			} else {
+				source = slice(buffer, pos, 2 * sourceLength).asCharBuffer();
+			}
+
+			IntBuffer ints = slice(buffer, 4 * HEADER_INTS, 4 * size).asIntBuffer();
+			DocNode doc = new DocNode();
+			doc.setChildren(read(ints, symbols, source, topCount));
+			return new Snapshot(doc, source);
+		} catch (RuntimeException e) {
+			// counts or offsets inside the tables that do not fit
+			throw new IOException("corrupt document snapshot: " + file, e);
+		}
+	}
+
+	private static ByteBuffer slice(ByteBuffer buffer, int from, int length) {
+		return buffer.duplicate().position(from).limit(from + length).slice();
+	}
+
+	/**
+	 * Builds the nodes in document order, with a stack of the elements whose children are still due.
+	 */
+	private static List<ASTNode> read(IntBuffer ints, String[] symbols, CharSequence source, int topCount) {
+		Deque<Frame> frames = new ArrayDeque<>();
+		Frame top = new Frame(null, topCount);
+		frames.push(top);
+		while (true) {
+			Frame frame = frames.peek();
+			if (frame.remaining == 0) {
+				frames.pop();
+				if (frame.element == null) {
+					return frame.children;
+				}
+				frame.element.initChildren(frame.children);
+				continue;
+			}
+			frame.remaining--;
+
+			if (ints.get() == TEXT) {
+				int start = ints.get();
+				int end = ints.get();
+				frame.children.add(new TextNode(frame.element, new Token(source, start, end, TokenType.TEXT)));
+				continue;
+			}
+
+			int childCount = ints.get();
+			int attribCount = ints.get();
+			int start = ints.get();
+			Token name = name(source, symbols[ints.get()], ints.get(), ints.get());
+			int tagEndStart = ints.get();
+			int tagEnd = ints.get();
+			List<AttributeNode> attribs = attribCount == 0 ? Collections.emptyList() : new ArrayList<>(attribCount);
+			for (int a = 0; a < attribCount; a++) {
+				Token attrib = name(source, symbols[ints.get()], ints.get(), ints.get());
+				int valueStart = ints.get();
+				int valueEnd = ints.get();
+				attribs.add(new AttributeNode(attrib, valueStart == -1 ? null : new Token(source, valueStart, valueEnd, TokenType.STRING)));
+			}
+			ElementNode element = new ElementNode(frame.element, new Token(source, start, start + 1, TokenType.OPEN), name, attribs,
+					new Token(source, tagEndStart, tagEnd, tagEnd - tagEndStart == 2 ? TokenType.CLOSE_END : TokenType.CLOSE));
+			frame.children.add(element);
+
+			int closeStart = ints.get();
+			if (closeStart != -1) {
+				Token closeName = name(source, name.val, ints.get(), ints.get());
+				int closeEnd = ints.get();
+				element.setCloseTag(new CloseTag(element, new Token(source, closeStart, closeStart + 2, TokenType.OPEN_END), closeName,
+						new Token(source, closeEnd - 1, closeEnd, TokenType.CLOSE)));
+				frames.push(new Frame(element, childCount));
+			}
+		}
+	}
+
+	private static Token name(CharSequence source, String name, int start, int end) {
+		Token token = new Token(source, start, end, TokenType.NAME);
+		token.val = name;
+		return token;
+	}
+
+	private static final class Frame {
+		final ElementNode element;
+		final List<ASTNode> children;
+		int remaining;
+
+		Frame(ElementNode element, int count) {
+			this.element = element;
+			this.children = count == 0 ? Collections.emptyList() : new ArrayList<>(count);
+			this.remaining = count;
+		}
+	}
+
+	/**
+	 * Flattens the nodes into ints: a text is {TEXT, start, end}, an element is {ELEMENT, child count,
+	 * attribute count, start, name, name start, name end, start tag end start, start tag end}, then per
+	 * attribute {name, name start, name end, value start, value end}, then {close start, close name start,
+	 * close name end, close end} or {-1} for elements without close tag, then its children.
+	 */
+	private static final class Writer {
+		int[] ints = new int[256];
+		int size;
+		final List<String> symbols = new ArrayList<>();
+		final Map<String, Integer> ids = new HashMap<>();
+		int symbolChars;
+
+		void nodes(List<ASTNode> top) {
+			Deque<ASTNode> stack = new ArrayDeque<>();
+			push(stack, top);
+			while (!stack.isEmpty()) {
+				ASTNode node = stack.pop();
+				if (node.created) {
+					throw new IllegalArgumentException("created nodes have no source offsets: " + node);
+				}
+				if (node.changed) {
+					throw new IllegalArgumentException("the source does not describe changed nodes: " + node);
+				}
+				if (node instanceof TextNode) {
+					add(TEXT);
+					add(node.start());
+					add(node.end());
+					continue;
+				}
+
+				ElementNode element = (ElementNode) node;
+				if (element.isLazy()) {
+					throw new IllegalArgumentException("lazy documents cannot be written");
+				}
+				Token name = element.getNameToken();
+				Token tagEnd = element.getTagEnd();
+				List<AttributeNode> attribs = element.getAttributes();
+				add(ELEMENT);
+				add(element.getChildren().size());
+				add(attribs.size());
+				add(element.start());
+				add(symbol(name.val()));
+				add(name.start);
+				add(name.end);
+				add(tagEnd.start);
+				add(tagEnd.end);
+				for (AttributeNode attrib : attribs) {
+					Token attribName = attrib.getNameToken();
+					Token value = attrib.getValueToken();
+					add(symbol(attribName.val()));
+					add(attribName.start);
+					add(attribName.end);
+					add(value == null ? -1 : value.start);
+					add(value == null ? -1 : value.end);
+				}
+				CloseTag closeTag = element.getCloseTag();
+				if (closeTag == null) {
+					add(-1);
+				} else {
+					add(closeTag.start());
+					add(closeTag.getNameToken().start);
+					add(closeTag.getNameToken().end);
+					add(closeTag.end());
+				}
+				push(stack, element.getChildren());
+			}
+		}
+
+		private static void push(Deque<ASTNode> stack, List<ASTNode> nodes) {
+			for (int n = nodes.size() - 1; n >= 0; n--) {
+				stack.push(nodes.get(n));
+			}
+		}
+
+		private int symbol(String name) {
+			Integer id = ids.get(name);
+			if (id == null) {
+				id = symbols.size();
+				ids.put(name, id);
+				symbols.add(name);
+				symbolChars += name.length();
+			}
+			return id;
+		}
+
+		private void add(int value) {
+			if (size == ints.length) {
+				ints = Arrays.copyOf(ints, size * 2);
+			}
+			ints[size++] = value;
+		}
+	}
+}
@@ -0,0 +1,234 @@
+package parse;
+
+import java.util.Arrays;
+
+/**
+ * Cheap pre-scan that finds element boundaries without tokenizing: it jumps between '<' delimiters,
+ * skips comments, doctypes, preambles and quoted attribute values, and tracks nesting with the same
+ * rules as the parser (self-closing tags, br and img). Elements up to a given depth are recorded in
+ * document order, each with the index of its parent record.
+ */
+class StructureScanner {
+
+	private final CharSequence s;
+	private final int maxDepth;
+
+	// recorded elements, close is -1 for empty elements
+	int count;
+	int[] starts = new int[16];
+	int[] tagEnds = new int[16];
+	int[] closes = new int[16];
+	int[] ends = new int[16];
+	int[] parents = new int[16];
+	// first record after the subtree of each record
+	int[] afters = new int[16];
+
+	// open elements: name span and record index, -1 if deeper than maxDepth
+	private int depth;
+	private int[] nameStarts = new int[16];
+	private int[] nameEnds = new int[16];
+	private int[] records = new int[16];
+
+	/**
+	 * @param maxDepth elements nested deeper than this are tracked, but not recorded; 0 records top-level elements only
+	 */
+	StructureScanner(CharSequence s, int maxDepth) {
+		this.s = s;
+		this.maxDepth = maxDepth;
+	}
+
+	StructureScanner scan(int from, int to) {
+		int pos = from;
+		while (true) {
+			int lt = indexOf('<', pos, to);
+			if (lt == -1) {
+				break;
+			}
+			if (lookingAt("<!--", lt, to)) {
+				pos = after("-->", lt + 4, to);
+			} else if (lookingAt("<?", lt, to)) {
+				pos = after("?>", lt + 2, to);
+			} else if (lookingAt("<!", lt, to)) {
+				pos = after(">", lt + 2, to);
+			} else if (lookingAt("</", lt, to)) {
+				pos = closeTag(lt, to);
+			} else {
+				pos = openTag(lt, to);
+			}
+		}
+		if (depth > 0) {
+			throw new AssertionError("unclosed element '" + s.subSequence(nameStarts[depth - 1], nameEnds[depth - 1]) + "'");
+		}
+		return this;
+	}
+
+	private int openTag(int lt, int to) {
+		int nameStart = lt + 1;
+		while (nameStart < to && s.charAt(nameStart) == ' ') {
+			nameStart++;
+		}
+		int nameEnd = nameEnd(nameStart, to);
+
+		int gt = nameEnd;
+		for (; gt < to; gt++) {
+			char c = s.charAt(gt);
+			if (c == '"') {
+				gt = indexOf('"', gt + 1, to);
+				if (gt == -1) {
+					throw new AssertionError("unclosed string at offset: " + lt);
+				}
+			} else if (c == '>') {
+				break;
+			}
+		}
+		if (gt == to) {
+			throw new AssertionError("unclosed tag at offset: " + lt);
+		}
+
+		boolean empty = s.charAt(gt - 1) == '/' || nameEquals(nameStart, nameEnd, "br") || nameEquals(nameStart, nameEnd, "img");
+		int record = -1;
+		if (depth <= maxDepth) {
+			record = record(lt, gt + 1, depth == 0 ? -1 : records[depth - 1]);
+		}
+		if (empty) {
+			if (record != -1) {
+				ends[record] = gt + 1;
+				afters[record] = count;
+			}
+		} else {
+			push(nameStart, nameEnd, record);
+		}
+		return gt + 1;
+	}
+
+	private int closeTag(int lt, int to) {
+		int nameStart = lt + 2;
+		int nameEnd = nameEnd(nameStart, to);
+		int gt = indexOf('>', nameEnd, to);
+		if (gt == -1) {
+			throw new AssertionError("unclosed tag at offset: " + lt);
+		}
+		if (depth == 0) {
+			// the parser stops at a close tag without open element
+			return to;
+		}
+		depth--;
+		if (!regionEquals(nameStarts[depth], nameEnds[depth], nameStart, nameEnd)) {
+			throw HtmlParser.wrongCloseTag(s.subSequence(nameStarts[depth], nameEnds[depth]).toString(),
+					s.subSequence(nameStart, nameEnd).toString(), lt);
+		}
+		int record = records[depth];
+		if (record != -1) {
+			closes[record] = lt;
+			ends[record] = gt + 1;
+			afters[record] = count;
+		}
+		return gt + 1;
+	}
+
+	private int nameEnd(int from, int to) {
+		int j = from;
+		while (j < to) {
+			char c = s.charAt(j);
+			if (c == ' ' || c == '\t' || c == '\r' || c == '\n' || c == '=' || c == '/' || c == '>') {
+				break;
+			}
+			j++;
+		}
+		return j;
+	}
+
+	private int record(int start, int tagEnd, int parent) {
+		if (count == starts.length) {
+			int size = count * 2;
+			starts = Arrays.copyOf(starts, size);
+			tagEnds = Arrays.copyOf(tagEnds, size);
+			closes = Arrays.copyOf(closes, size);
+			ends = Arrays.copyOf(ends, size);
+			parents = Arrays.copyOf(parents, size);
+			afters = Arrays.copyOf(afters, size);
+		}
+		starts[count] = start;
+		tagEnds[count] = tagEnd;
+		closes[count] = -1;
+		ends[count] = -1;
+		parents[count] = parent;
+		return count++;
+	}
+
+	private void push(int nameStart, int nameEnd, int record) {
+		if (depth == records.length) {
+			int size = depth * 2;
+			nameStarts = Arrays.copyOf(nameStarts, size);
+			nameEnds = Arrays.copyOf(nameEnds, size);
+			records = Arrays.copyOf(records, size);
+		}
+		nameStarts[depth] = nameStart;
+		nameEnds[depth] = nameEnd;
+		records[depth] = record;
+		depth++;
+	}
+
+	private int after(String target, int from, int to) {
+		int pos = from;
+		while (true) {
+			int candidate = indexOf(target.charAt(0), pos, to);
+			if (candidate == -1) {
+				throw new AssertionError("missing '" + target + "' after offset: " + from);
+			}
+			if (lookingAt(target, candidate, to)) {
+				return candidate + target.length();
+			}
+			pos = candidate + 1;
+		}
+	}
+
+	private int indexOf(char c, int from, int to) {
+		if (s instanceof String) {
+			int found = ((String) s).indexOf(c, from);
+			return found < to ? found : -1;
+		}
+		for (int j = from; j < to; j++) {
+			if (s.charAt(j) == c) {
+				return j;
+			}
+		}
+		return -1;
+	}
+
+	private boolean lookingAt(String target, int pos, int to) {
+		if (pos + target.length() > to) {
+			return false;
+		}
+		for (int j = 0; j < target.length(); j++) {
+			if (s.charAt(pos + j) != target.charAt(j)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean nameEquals(int from, int to, String name) {
+		if (to - from != name.length()) {
+			return false;
+		}
+		for (int j = 0; j < name.length(); j++) {
+			if (s.charAt(from + j) != name.charAt(j)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean regionEquals(int aFrom, int aTo, int bFrom, int bTo) {
+		if (aTo - aFrom != bTo - bFrom) {
+			return false;
+		}
+		for (int j = 0; j < aTo - aFrom; j++) {
+			if (s.charAt(aFrom + j) != s.charAt(bFrom + j)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,107 @@
+package parse;
+
+import java.util.Arrays;
+
+/**
+ * Interns names by hashing and comparing them in place in the source, so a name seen before costs
+ * no allocation and equal names share one String. Only ASCII names are interned, as byte sources
+ * index bytes rather than chars. The table stops growing at its capacity, later names are not interned.
+ */
+class SymbolTable {
+
+	static final int DEFAULT_CAPACITY = 4096;
+
+	private final int capacity;
+	private String[] names = new String[64];
+	private int[] hashes = new int[64];
+	private int count;
+	// open addressing, id + 1 per slot, 0 for a free slot
+	private int[] slots = new int[128];
+
+	SymbolTable() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	SymbolTable(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @return the id of the name between the offsets, or -1 if it cannot be interned
+	 */
+	int intern(CharSequence s, int from, int to) {
+		int hash = 0;
+		for (int j = from; j < to; j++) {
+			char c = s.charAt(j);
+			if (c >= 0x80) {
+				return -1;
+			}
+			hash = 31 * hash + c;
+		}
+
+		int mask = slots.length - 1;
+		for (int slot = mix(hash) & mask; ; slot = (slot + 1) & mask) {
+			int id = slots[slot] - 1;
+			if (id == -1) {
+				if (count == capacity) {
+					return -1;
+				}
+				return add(s.subSequence(from, to).toString(), hash, slot);
+			}
+			if (hashes[id] == hash && matches(names[id], s, from, to)) {
+				return id;
+			}
+		}
+	}
+
+	String name(int id) {
+		return names[id];
+	}
+
+	int size() {
+		return count;
+	}
+
+	private static boolean matches(String name, CharSequence s, int from, int to) {
+		if (name.length() != to - from) {
+			return false;
+		}
+		for (int j = 0; j < name.length(); j++) {
+			if (name.charAt(j) != s.charAt(from + j)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int add(String name, int hash, int slot) {
+		if (count == names.length) {
+			names = Arrays.copyOf(names, count * 2);
+			hashes = Arrays.copyOf(hashes, count * 2);
+		}
+		int id = count++;
+		names[id] = name;
+		hashes[id] = hash;
+		slots[slot] = id + 1;
+		if (count * 2 > slots.length) {
+			rehash();
+		}
+		return id;
+	}
+
+	private void rehash() {
+		slots = new int[slots.length * 2];
+		int mask = slots.length - 1;
+		for (int id = 0; id < count; id++) {
+			int slot = mix(hashes[id]) & mask;
+			while (slots[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			slots[slot] = id + 1;
+		}
+	}
+
+	private static int mix(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+}
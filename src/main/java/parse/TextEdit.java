@@ -0,0 +1,85 @@
+package parse;
+
+import java.util.List;
+
+/**
+ * Replaces the source between start and end, offsets refer to the source before any edit.
+ */
+public final class TextEdit {
+	private final int start;
+	private final int end;
+	private final String replacement;
+
+	public TextEdit(int start, int end, String replacement) {
+		if (start < 0 || end < start) {
+			throw new IllegalArgumentException("bad range: " + start + "-" + end);
+		}
+		this.start = start;
+		this.end = end;
+		this.replacement = replacement;
+	}
+
+	public static TextEdit insert(int offset, String text) {
+		return new TextEdit(offset, offset, text);
+	}
+
+	public static TextEdit delete(int start, int end) {
+		return new TextEdit(start, end, "");
+	}
+
+	public int start() {
+		return start;
+	}
+
+	public int end() {
+		return end;
+	}
+
+	public String getReplacement() {
+		return replacement;
+	}
+
+	/**
+	 * Change of the source length by this edit.
+	 */
+	public int delta() {
+		return replacement.length() - (end - start);
+	}
+
+	/**
+	 * Applies edits sorted by offset and not overlapping, an insertion may share its offset
+	 * with the start of the following edit.
+	 */
+	public static String apply(CharSequence source, List<TextEdit> edits) {
+		checkOrder(edits, source.length());
+		StringBuilder sb = new StringBuilder(source.length() + 16);
+		int pos = 0;
+		for (TextEdit edit : edits) {
+			sb.append(source, pos, edit.start).append(edit.replacement);
+			pos = edit.end;
+		}
+		return sb.append(source, pos, source.length()).toString();
+	}
+
+	static void checkOrder(List<TextEdit> edits, int length) {
+		int pos = 0;
+		for (TextEdit edit : edits) {
+			if (edit.start < pos) {
+				throw new IllegalArgumentException("edits overlap or are not sorted at: " + edit);
+			}
+			pos = edit.end;
+		}
+		if (pos > length) {
+			throw new IllegalArgumentException("edit beyond the end of the source: " + length);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "TextEdit{" +
+				"start=" + start +
+				", end=" + end +
+				", replacement='" + replacement + '\'' +
+				'}';
+	}
+}
@@ -10,6 +10,20 @@ public class TextNode extends ASTNode {
 		this.text = text;
 	}
 
+	/**
+	 * Creates a text node to be inserted with {@link ElementNode#setChildren(java.util.List)}, the text is given as
+	 * it appears in the markup.
+	 */
+	public static TextNode create(String text) {
+		TextNode node = new TextNode(null, Token.of(text, HtmlLexer.TokenType.TEXT));
+		node.created = true;
+		return node;
+	}
+
+	String text() {
+		return text.val();
+	}
+
 	@Override
 	public void accept(HtmlVisitor visitor) {
 		visitor.visitText(this);
@@ -25,8 +39,21 @@ public class TextNode extends ASTNode {
 		return text.end;
 	}
 
+	@Override
+	void shift(int delta, CharSequence source) {
+		text.shift(delta, source);
+	}
+
 	public String trimmedString() {
-		return text.val.trim();
+		int from = text.start;
+		int to = text.end;
+		while (from < to && text.charAt(from) <= ' ') {
+			from++;
+		}
+		while (to > from && text.charAt(to - 1) <= ' ') {
+			to--;
+		}
+		return text.slice(from, to);
 	}
 
 	@Override
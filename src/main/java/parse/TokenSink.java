@@ -0,0 +1,28 @@
+package parse;
+
+/**
+ * Receives the structure of a document from {@link HtmlParser} as token indices of its lexer.
+ * Indices are only valid during the call.
+ */
+interface TokenSink {
+
+	void text(int text);
+
+	void comment(int comment);
+
+	void startTag(int open, int name);
+
+	/**
+	 * @param value index of the STRING token, or -1 for an attribute without value
+	 */
+	void attribute(int name, int value);
+
+	/**
+	 * @param empty true if the element has no content and no close tag follows
+	 */
+	void endStartTag(int close, boolean empty);
+
+	void endTag(int open, int name, int close);
+
+	void end();
+}
@@ -0,0 +1,152 @@
+package parse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import parse.HtmlLexer.Token;
+
+/**
+ * Builds the AST with an explicit stack of open elements, so nesting depth is not bounded by the
+ * thread stack. Its lists are reused across documents, nodes get exact-size copies.
+ */
+class TreeSink implements TokenSink {
+
+	private final HtmlLexer lexer;
+	private final List<ElementNode> open = new ArrayList<>();
+	// children collected so far per nesting level, level 0 belongs to the parent passed to begin()
+	private final List<List<ASTNode>> children = new ArrayList<>();
+	private final List<AttributeNode> attribs = new ArrayList<>();
+	private ElementNode base;
+	private Token tagOpen;
+	private Token tagName;
+	private List<ASTNode> result;
+	private ElementNode last;
+
+	TreeSink(HtmlLexer lexer) {
+		this.lexer = lexer;
+	}
+
+	void begin(ElementNode parent) {
+		base = parent;
+		open.clear();
+		attribs.clear();
+		level(0).clear();
+		result = null;
+	}
+
+	/**
+	 * Drops everything referring to the last document, also after a failed parse.
+	 */
+	void clear() {
+		begin(null);
+		for (List<ASTNode> level : children) {
+			level.clear();
+		}
+		tagOpen = null;
+		tagName = null;
+		last = null;
+	}
+
+	/**
+	 * Whether nothing refers to a document, as after {@link #clear()}.
+	 */
+	boolean isClear() {
+		for (List<ASTNode> level : children) {
+			if (!level.isEmpty()) {
+				return false;
+			}
+		}
+		return open.isEmpty() && attribs.isEmpty() && base == null && tagOpen == null && tagName == null
+				&& result == null && last == null;
+	}
+
+	List<ASTNode> result() {
+		return result;
+	}
+
+	private List<ASTNode> level(int depth) {
+		if (depth == children.size()) {
+			children.add(new ArrayList<>());
+		}
+		return children.get(depth);
+	}
+
+	private ElementNode parent() {
+		return open.isEmpty() ? base : open.get(open.size() - 1);
+	}
+
+	@Override
+	public void text(int text) {
+		children.get(open.size()).add(new TextNode(parent(), lexer.token(text)));
+	}
+
+	@Override
+	public void comment(int comment) {
+		// ignore for now
+	}
+
+	@Override
+	public void startTag(int open, int name) {
+		tagOpen = lexer.token(open);
+		tagName = lexer.token(name);
+	}
+
+	@Override
+	public void attribute(int name, int value) {
+		attribs.add(new AttributeNode(lexer.token(name), value == -1 ? null : lexer.token(value)));
+	}
+
+	@Override
+	public void endStartTag(int close, boolean empty) {
+		ElementNode element = new ElementNode(parent(), tagOpen, tagName, copy(attribs), lexer.token(close));
+		children.get(open.size()).add(element);
+		last = element;
+		if (!empty) {
+			open.add(element);
+			level(open.size()).clear();
+		}
+	}
+
+	@Override
+	public void endTag(int open, int name, int close) {
+		ElementNode element = this.open.get(this.open.size() - 1);
+		CloseTag closeTag = closeTag(lexer, element, open, name, close);
+		element.initChildren(copy(children.get(this.open.size())));
+		element.setCloseTag(closeTag);
+		this.open.remove(this.open.size() - 1);
+	}
+
+	static CloseTag closeTag(HtmlLexer lexer, ElementNode element, int open, int name, int close) {
+		CloseTag closeTag = new CloseTag(element, lexer.token(open), lexer.token(name), lexer.token(close));
+		if (!closeTag.hasName(element.getNameToken())) {
+			throw HtmlParser.wrongCloseTag(element.getTagName(), closeTag.getName(), closeTag.start());
+		}
+		return closeTag;
+	}
+
+	/**
+	 * The element of the last start tag.
+	 */
+	ElementNode last() {
+		return last;
+	}
+
+	/**
+	 * The innermost open element.
+	 */
+	ElementNode current() {
+		return open.get(open.size() - 1);
+	}
+
+	@Override
+	public void end() {
+		result = copy(children.get(0));
+	}
+
+	private static <T> List<T> copy(List<T> scratch) {
+		List<T> ret = scratch.isEmpty() ? Collections.emptyList() : new ArrayList<>(scratch);
+		scratch.clear();
+		return ret;
+	}
+}
@@ -3,6 +3,8 @@ package parse;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.MatcherAssert.assertThat;
 
+import java.io.StringReader;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
@@ -192,6 +194,90 @@ public class HtmlLexerTest {
 		assertThat(tokens.size(), is(11805));
 	}
 
+	@Test
+	public void lexes_on_demand() throws Exception {
+		HtmlLexer lexer = new HtmlLexer("<foo>bar</foo><!");
+
+		assertThat(lexer.next().toString(), is("Token{start=0, end=1, val='<', type=OPEN}"));
+		assertThat(lexer.next().toString(), is("Token{start=1, end=4, val='foo', type=NAME}"));
+		assertThat(lexer.peek().toString(), is("Token{start=4, end=5, val='>', type=CLOSE}"));
+		assertThat(lexer.next().toString(), is("Token{start=4, end=5, val='>', type=CLOSE}"));
+		assertThat(lexer.next().toString(), is("Token{start=5, end=8, val='bar', type=TEXT}"));
+	}
+
+	@Test
+	public void token_indices() throws Exception {
+		HtmlLexer lexer = new HtmlLexer("<foo a=\"1\"/>");
+
+		int open = lexer.advance();
+		int name = lexer.advance();
+		assertThat(lexer.type(open), is(HtmlLexer.TokenType.OPEN));
+		assertThat(lexer.type(name), is(HtmlLexer.TokenType.NAME));
+		assertThat(lexer.start(name), is(1));
+		assertThat(lexer.end(name), is(4));
+
+		lexer.release();
+		int attrib = lexer.advance();
+		assertThat(attrib, is(0));
+		assertThat(lexer.token(attrib).toString(), is("Token{start=5, end=6, val='a', type=NAME}"));
+		assertThat(lexer.type(lexer.advance()), is(HtmlLexer.TokenType.EQ));
+		assertThat(lexer.type(lexer.advance()), is(HtmlLexer.TokenType.STRING));
+		assertThat(lexer.type(lexer.advance()), is(HtmlLexer.TokenType.CLOSE_END));
+		assertThat(lexer.peekType(), is(HtmlLexer.TokenType.EOF));
+	}
+
+	@Test
+	public void sliding_window() throws Exception {
+		byte[] bytes = Files.readAllBytes(Paths.get("src/test/java", this.getClass().getPackage().getName(), "spiegel.txt"));
+		String text = new String(bytes, StandardCharsets.ISO_8859_1);
+
+		HtmlLexer streamed = new HtmlLexer(new CharWindow(new StringReader(text), 16));
+
+		for (HtmlLexer.Token token : lex(text)) {
+			assertThat(streamed.next().toString(), is(token.toString()));
+		}
+		assertThat(streamed.peekType(), is(HtmlLexer.TokenType.EOF));
+	}
+
+	@Test
+	public void bulk_scanning_sources() throws Exception {
+		byte[] bytes = Files.readAllBytes(Paths.get("src/test/java", this.getClass().getPackage().getName(), "spiegel.txt"));
+		String text = new String(bytes, StandardCharsets.ISO_8859_1);
+		List<HtmlLexer.Token> expected = lex(text);
+
+		List<HtmlLexer.Token> fromBytes = new HtmlLexer(new ByteCharSequence(ByteBuffer.wrap(bytes))).getTokens();
+		List<HtmlLexer.Token> fromBuilder = new HtmlLexer(new StringBuilder(text)).getTokens();
+
+		assertThat(fromBytes.size(), is(expected.size()));
+		assertThat(fromBuilder.size(), is(expected.size()));
+		for (int i = 0; i < expected.size(); i++) {
+			assertThat(fromBytes.get(i).start + ":" + fromBytes.get(i).end + ":" + fromBytes.get(i).type,
+					is(expected.get(i).start + ":" + expected.get(i).end + ":" + expected.get(i).type));
+			assertThat(fromBuilder.get(i).toString(), is(expected.get(i).toString()));
+		}
+	}
+
+	@Test
+	public void interned_names() throws Exception {
+		HtmlLexer lexer = new HtmlLexer("<div class=\"a\"></div>");
+		List<HtmlLexer.Token> first = lexer.getTokens();
+		lexer.reset(new StringBuilder("<p><div class></div></p>"));
+		List<HtmlLexer.Token> second = lexer.getTokens();
+
+		assertThat(first.get(1).val() == second.get(4).val(), is(true));
+		assertThat(first.get(2).val() == second.get(5).val(), is(true));
+		assertThat(first.get(7).val() == second.get(8).val(), is(true));
+		assertThat(second.get(8).val(), is("div"));
+
+		SymbolTable symbols = new SymbolTable(2);
+		String text = "div span a div \u00e4";
+		assertThat(symbols.intern(text, 0, 3), is(0));
+		assertThat(symbols.intern(text, 4, 8), is(1));
+		assertThat(symbols.intern(text, 9, 10), is(-1));
+		assertThat(symbols.intern(text, 11, 14), is(0));
+		assertThat(new SymbolTable().intern(text, 15, 16), is(-1));
+	}
+
 	private void print(List<HtmlLexer.Token> tokens) {
 		for (HtmlLexer.Token token : tokens) {
 			System.out.println(token);
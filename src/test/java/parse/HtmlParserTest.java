@@ -2,16 +2,32 @@ package parse;
 
 import static java.util.Arrays.asList;
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.startsWith;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertThrows;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.BiFunction;
 import java.util.stream.Collectors;
 
@@ -198,6 +214,738 @@ public class HtmlParserTest {
 		assertThat(elem.getAttribute("not-there").isPresent(), is(false));
 	}
 
+	@Test
+	public void attribute_lookup() throws Exception {
+		StringBuilder tag = new StringBuilder("<foo");
+		for (int i = 0; i < 12; i++) {
+			tag.append(" a").append(i).append("=\"").append(i).append("\"");
+		}
+		tag.append(" a3=\"dup\" flag></foo>");
+
+		for (String text : asList(tag.toString(), "<foo a3=\"3\" flag a3=\"dup\"/>")) {
+			ElementNode elem = (ElementNode) parse(text).getChildren().get(0);
+			assertThat(elem.getAttributeValue("a3"), is("3"));
+			assertThat(elem.getAttributeValue("a3") == elem.getAttributeValue("a3"), is(true));
+			assertThat(elem.findAttribute("flag").getName(), is("flag"));
+			assertThat(elem.getAttributeValue("flag"), is((String) null));
+			assertThat(elem.findAttribute("a99"), is((AttributeNode) null));
+			assertThat(elem.getAttribute("a99").isPresent(), is(false));
+		}
+		ElementNode elem = (ElementNode) parse(tag.toString()).getChildren().get(0);
+		assertThat(elem.getAttributeValue("a11"), is("11"));
+	}
+
+	/**
+	 * Token values are sliced from any CharSequence source on demand.
+	 */
+	@Test
+	public void char_sequence_source() throws Exception {
+		StringBuilder text = new StringBuilder("<foo name=\"doe\"> \n bar baz\t</foo>");
+		ElementNode elem = (ElementNode) new HtmlParser(text).parseDoc().getChildren().get(0);
+
+		assertThat(elem.getTagName(), is("foo"));
+		assertThat(elem.getAttribute("name").get(), is("doe"));
+		assertThat(elem.getTrimmedStringContent(), is("bar baz"));
+	}
+
+	/**
+	 * Push parsing fires callbacks without building a tree.
+	 */
+	@Test
+	public void handler_events() throws Exception {
+		String text = "<foo a=\"1\" b><!-- x --><bar>baz</bar><br></foo>";
+
+		List<String> events = new LinkedList<>();
+		new HtmlParser(text).parse(new HtmlHandler() {
+			@Override
+			public void startElement(String name, int start) {
+				events.add("start " + name + "@" + start);
+			}
+
+			@Override
+			public void attribute(String name, String value, int start, int end) {
+				events.add("attr " + name + "=" + value);
+			}
+
+			@Override
+			public void text(CharSequence source, int start, int end) {
+				events.add("text " + source.subSequence(start, end));
+			}
+
+			@Override
+			public void comment(CharSequence source, int start, int end) {
+				events.add("comment " + source.subSequence(start, end));
+			}
+
+			@Override
+			public void endElement(String name, int end) {
+				events.add("end " + name + "@" + end);
+			}
+		});
+
+		assertThat(events, is(asList(
+				"start foo@0", "attr a=1", "attr b=null",
+				"comment <!-- x -->",
+				"start bar@23", "text baz", "end bar@37",
+				"start br@37", "end br@41",
+				"end foo@47")));
+	}
+
+	@Test(expected = AssertionError.class)
+	public void handler_wrong_close_tag() throws Exception {
+		new HtmlParser("<foo><bar></foo></bar>").parse(new HtmlHandler() {
+		});
+	}
+
+	/**
+	 * Streamed input keeps absolute offsets.
+	 */
+	@Test
+	public void parse_from_reader() throws Exception {
+		byte[] bytes = Files.readAllBytes(Paths.get("src/test/java", this.getClass().getPackage().getName(), "spiegel.txt"));
+		String content = new String(bytes, StandardCharsets.ISO_8859_1);
+
+		List<String> expected = new LinkedList<>();
+		parse(content).accept(new HtmlVisitor() {
+			@Override
+			public void visitText(TextNode textNode) {
+				expected.add(textNode.start() + ":" + textNode.end() + ":" + textNode.trimmedString());
+			}
+		});
+
+		List<String> streamed = new LinkedList<>();
+		new HtmlParser(new ByteArrayInputStream(bytes), StandardCharsets.ISO_8859_1).parseDoc().accept(new HtmlVisitor() {
+			@Override
+			public void visitText(TextNode textNode) {
+				streamed.add(textNode.start() + ":" + textNode.end() + ":" + textNode.trimmedString());
+				assertThat(content.substring(textNode.start(), textNode.end()).trim(), is(textNode.trimmedString()));
+			}
+		});
+
+		assertThat(streamed, is(expected));
+	}
+
+	/**
+	 * Mapped files are lexed as bytes, values are decoded as UTF-8.
+	 */
+	@Test
+	public void map_file() throws Exception {
+		Path file = Files.createTempFile("parse", ".html");
+		try {
+			byte[] bytes = "<p title=\"Gr\u00fc\u00dfe\">Stra\u00dfe <b>\u00df</b></p>".getBytes(StandardCharsets.UTF_8);
+			Files.write(file, bytes);
+
+			ElementNode p = (ElementNode) HtmlParser.mapFile(file).parseDoc().getChildren().get(0);
+			assertThat(p.getAttribute("title").get(), is("Gr\u00fc\u00dfe"));
+			assertThat(((TextNode) p.getChildren().get(0)).trimmedString(), is("Stra\u00dfe"));
+
+			ElementNode b = p.getChildNodes().get(0);
+			assertThat(b.getTrimmedStringContent(), is("\u00df"));
+			assertThat(new String(bytes, b.start(), b.end() - b.start(), StandardCharsets.UTF_8), is("<b>\u00df</b>"));
+			assertThat(p.end(), is(bytes.length));
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	/**
+	 * Close tags of non-ASCII names match their start tags in every sink over a mapped file.
+	 */
+	@Test
+	public void map_file_non_ascii_names() throws Exception {
+		Path file = Files.createTempFile("parse", ".html");
+		try {
+			Files.write(file, "<\u00e4x><\u00f6 \u00fc=\"1\">t</\u00f6></\u00e4x>".getBytes(StandardCharsets.UTF_8));
+
+			List<String> events = new ArrayList<>();
+			HtmlParser.mapFile(file).parse(new HtmlHandler() {
+				@Override
+				public void startElement(String name, int start) {
+					events.add("<" + name);
+				}
+
+				@Override
+				public void endElement(String name, int end) {
+					events.add("/" + name);
+				}
+			});
+			assertThat(events, is(asList("<\u00e4x", "<\u00f6", "/\u00f6", "/\u00e4x")));
+
+			FlatDocument flat = HtmlParser.mapFile(file).parseFlat();
+			int outer = flat.first();
+			int inner = flat.firstChild(outer);
+			assertThat(flat.tagName(outer), is("\u00e4x"));
+			assertThat(flat.tagName(inner), is("\u00f6"));
+			assertThat(flat.attributeValue(inner, flat.attributeIndex(inner, "\u00fc")), is("1"));
+
+			List<List<ElementNode>> found = HtmlParser.mapFile(file).select(Selector.compile("\u00e4x \u00f6[\u00fc]"));
+			assertThat(found.get(0).size(), is(1));
+			assertThat(found.get(0).get(0).getTrimmedStringContent(), is("t"));
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	/**
+	 * One parser instance can be reset for many documents, even after a failed one.
+	 */
+	@Test
+	public void reuse_parser() throws Exception {
+		HtmlParser parser = new HtmlParser();
+
+		ElementNode first = (ElementNode) parser.reset(HTML1).parseDoc().getChildren().get(0);
+		assertThrows(AssertionError.class, () -> parser.reset("<a><b></a>").parseDoc());
+		// go on with the next document
+		ElementNode second = (ElementNode) parser.reset("<x y=\"1\"><z/></x>").parseDoc().getChildren().get(0);
+
+		assertThat(first.getChildNodes().get(0).getTrimmedStringContent(), is("asdf"));
+		assertThat(first.getChildNodes().get(1).getTagName(), is("bazz"));
+		assertThat(second.getAttribute("y").get(), is("1"));
+		assertThat(second.getChildNodes().get(0).getTagName(), is("z"));
+		assertThat(second.getChildren().size(), is(1));
+	}
+
+	/**
+	 * Nesting depth is not bounded by the thread stack.
+	 */
+	@Test
+	public void deep_nesting() throws Exception {
+		int depth = 200_000;
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < depth; i++) {
+			sb.append("<d>");
+		}
+		sb.append("x");
+		for (int i = 0; i < depth; i++) {
+			sb.append("</d>");
+		}
+
+		ElementNode elem = (ElementNode) parse(sb.toString()).getChildren().get(0);
+		for (int i = 1; i < depth; i++) {
+			elem = elem.getChildNodes().get(0);
+		}
+
+		assertThat(elem.getTrimmedStringContent(), is("x"));
+		assertThat(elem.start(), is(3 * (depth - 1)));
+		assertThat(elem.getParent().getTagName(), is("d"));
+	}
+
+	/**
+	 * Parallel parsing yields the same tree, offsets and parent links as sequential parsing.
+	 */
+	@Test
+	public void parallel_parse() throws Exception {
+		StringBuilder sb = new StringBuilder("<?xml version=\"1.0\"?>\n<project>\n<dependencies>\n");
+		for (int i = 0; sb.length() < 500_000; i++) {
+			sb.append("<dependency scope=\"a > b\">\n<!-- </dependency> -->\n<name>dep").append(i)
+					.append("</name>\n<version>").append(i % 7).append("</version><br>\n</dependency>\n");
+		}
+		sb.append("</dependencies>\n</project>\n");
+		String xml = sb.toString();
+
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			// the content of <project> is one element, the chunks are cut in <dependencies>
+			ParallelHtmlParser parser = new ParallelHtmlParser(xml, pool);
+			assertThat(describe(parser.parseDoc()), is(describe(parse(xml))));
+			assertThat(parser.chunks() > 2, is(true));
+
+			String broken = xml.replace("<name>dep777</name>", "<name>dep777</nam>");
+			AssertionError error = assertThrows(AssertionError.class, () -> new ParallelHtmlParser(broken, pool).parseDoc());
+			assertThat(error.getMessage(), is("wrong close tag, expected 'name', but was 'nam' at offset: " + broken.indexOf("</nam>")));
+
+			// passes the pre-scan, fails in a chunk
+			String badValue = xml.replace("<version>3</version>", "<version x=3>3</version>");
+			String expected = assertThrows(AssertionError.class, () -> parse(badValue)).getMessage();
+			ParallelHtmlParser badParser = new ParallelHtmlParser(badValue, pool);
+			assertThat(assertThrows(AssertionError.class, badParser::parseDoc).getMessage(), is(expected));
+			assertThat(badParser.chunks() > 2, is(true));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void batch_parse() throws Exception {
+		List<String> docs = new ArrayList<>();
+		for (int i = 0; i < 50; i++) {
+			docs.add("<ul id=\"" + i + "\"><li>" + i + "</li></ul>");
+		}
+		docs.add("<ul><li></ul>");
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<CompletableFuture<DocNode>> futures = new BatchParser(executor, 2).submitAll(docs);
+			for (int i = 0; i < 50; i++) {
+				assertThat(describe(futures.get(i).get()), is(describe(parse(docs.get(i)))));
+			}
+			CompletionException error = assertThrows(CompletionException.class, () -> futures.get(50).join());
+			assertThat(error.getCause().getMessage(), is("wrong close tag, expected 'li', but was 'ul' at offset: 8"));
+
+			// the pooled parser goes on after a failed document
+			BatchParser single = new BatchParser(executor, 1);
+			CompletableFuture<DocNode> future = single.submit("<ul><li><p>partial</p></ul>");
+			assertThrows(CompletionException.class, future::join);
+			assertThat(describe(single.submit("<a></a>").get()).size(), is(1));
+		} finally {
+			executor.shutdown();
+		}
+
+		// and forgets a document that failed half way, as the pool resets it
+		HtmlParser parser = new HtmlParser();
+		assertThrows(AssertionError.class, () -> parser.reset("<ul><li><p>partial</p></ul>").parseDoc());
+		assertThat(parser.isClear(), is(false));
+		assertThat(parser.reset("").isClear(), is(true));
+		parser.reset("<a><b x=\"1\"></b></a>").parseDoc();
+		assertThat(parser.reset("").isClear(), is(true));
+	}
+
+	@Test
+	public void flat_document() throws Exception {
+		byte[] bytes = Files.readAllBytes(Paths.get("src/test/java", this.getClass().getPackage().getName(), "spiegel.txt"));
+		String content = new String(bytes, StandardCharsets.ISO_8859_1);
+
+		FlatDocument flat = new HtmlParser(content).parseFlat();
+		List<String> nodes = new LinkedList<>();
+		for (int n = 0; n < flat.size(); n++) {
+			FlatDocument.Node node = flat.node(n);
+			String parent = node.getParent() == null ? null : String.valueOf(node.getParent().start());
+			nodes.add(node.isElement()
+					? node.getTagName() + node.getAttributes() + "@" + node.start() + "-" + node.end() + " in " + parent
+					: node.trimmedString() + "@" + node.start() + " in " + parent);
+		}
+		assertThat(nodes, is(describe(parse(content))));
+
+		FlatDocument small = new HtmlParser("<foo><bar>asdf</bar><bazz abc=\"123\" de/></foo>").parseFlat();
+		FlatDocument.Node foo = small.getChildren().get(0);
+		assertThat(foo.getChildNodes().get(0).getTrimmedStringContent(), is("asdf"));
+		assertThat(foo.getChildNodes().get(1).getAttribute("abc").get(), is("123"));
+		assertThat(foo.getChildNodes().get(1).getAttribute("de").isPresent(), is(false));
+		assertThat(foo.getChildNodes().get(1).getParent(), is(foo));
+	}
+
+	@Test(expected = AssertionError.class)
+	public void flat_wrong_close_tag() throws Exception {
+		new HtmlParser("<a><b></a>").parseFlat();
+	}
+
+	@Test
+	public void document_index() throws Exception {
+		DocNode doc = parse("<div id=\"main\" class=\"a  b a\"><p class=\"b\">x</p><p id=\"main\"><br></p></div>");
+		ElementNode main = (ElementNode) doc.getChildren().get(0);
+
+		assertThat(doc.getElementById("main"), is(main));
+		assertThat(doc.getElementById("none"), is((ElementNode) null));
+		assertThat(doc.getElementsByTagName("p"), is(main.getChildNodes()));
+		assertThat(doc.getElementsByTagName("br").size(), is(1));
+		assertThat(doc.getElementsByClassName("a"), is(asList(main)));
+		assertThat(doc.getElementsByClassName("b"), is(asList(main, main.getChildNodes().get(0))));
+		assertThat(doc.getElementsByClassName("c").isEmpty(), is(true));
+
+		byte[] bytes = Files.readAllBytes(Paths.get("src/test/java", this.getClass().getPackage().getName(), "spiegel.txt"));
+		DocNode spiegel = parse(new String(bytes, StandardCharsets.ISO_8859_1));
+		List<ElementNode> divs = new ArrayList<>();
+		spiegel.accept(new HtmlVisitor() {
+			@Override
+			public void visitElement(ElementNode elementNode) {
+				if (elementNode.getTagName().equals("div")) {
+					divs.add(elementNode);
+				}
+			}
+		});
+		assertThat(spiegel.getElementsByTagName("div"), is(divs));
+	}
+
+	/**
+	 * Lookups see changes anywhere below the document, not only of its own children.
+	 */
+	@Test
+	public void document_index_after_change() throws Exception {
+		DocNode doc = parse("<div><section><p id=\"a\">x</p><p>y</p></section></div>");
+		ElementNode section = doc.getElementsByTagName("section").get(0);
+		assertThat(doc.getElementById("a").getTrimmedStringContent(), is("x"));
+		assertThat(doc.select("p").size(), is(2));
+
+		section.setChildren(new ArrayList<>(section.getChildren().subList(1, 2)));
+		assertThat(doc.getElementById("a"), is((ElementNode) null));
+		assertThat(doc.select("p").size(), is(1));
+
+		// the ancestors count as changed already
+		section.setChildren(Collections.singletonList(ElementNode.create("p", "id", "b")));
+		assertThat(doc.getElementById("b").getParent(), is(section));
+		assertThat(doc.getElementsByTagName("p"), is(section.getChildNodes()));
+	}
+
+	@Test
+	public void selectors() throws Exception {
+		DocNode doc = parse("<ul id=\"nav\"><li class=\"x active\"><a href=\"/a\">a</a></li><li><a href=\"/b\" rel>b</a></li>" +
+				"<li class=\"x\"><span><a href=\"/c\">c</a></span></li></ul><p><a href=\"/d\">d</a></p>");
+		BiFunction<DocNode, String, List<String>> hrefs = (d, css) -> d.select(css).stream()
+				.map(e -> e.getAttribute("href").orElse(e.getTagName()))
+				.collect(Collectors.toList());
+
+		assertThat(hrefs.apply(doc, "a"), is(asList("/a", "/b", "/c", "/d")));
+		assertThat(hrefs.apply(doc, "#nav a"), is(asList("/a", "/b", "/c")));
+		assertThat(hrefs.apply(doc, "#nav > li > a"), is(asList("/a", "/b")));
+		assertThat(hrefs.apply(doc, "li.x a"), is(asList("/a", "/c")));
+		assertThat(hrefs.apply(doc, ".x.active > *"), is(asList("/a")));
+		assertThat(hrefs.apply(doc, "a[rel]"), is(asList("/b")));
+		assertThat(hrefs.apply(doc, "[href='/c'], p a"), is(asList("/c", "/d")));
+		assertThat(hrefs.apply(doc, "li:nth-child(2n+1) a"), is(asList("/a", "/c")));
+		assertThat(hrefs.apply(doc, "ul li:nth-child(-n+2)").size(), is(2));
+		assertThat(hrefs.apply(doc, ":nth-child(2)"), is(asList("li", "p")));
+		assertThat(hrefs.apply(doc, "span a, p > a"), is(asList("/c", "/d")));
+
+		ElementNode nav = doc.getElementById("nav");
+		assertThat(nav.select("a").size(), is(3));
+		assertThat(Selector.compile("ul > li").matches(nav.getChildNodes().get(1)), is(true));
+
+		Selector links = Selector.compile("a[href]");
+		Selector items = Selector.compile("li");
+		List<List<ElementNode>> all = Selector.selectAll(doc, links, items);
+		assertThat(all.get(0), is(doc.getElementsByTagName("a")));
+		assertThat(all.get(1), is(doc.getElementsByTagName("li")));
+
+		for (String bad : asList("", "a >", "a[href", "a:hover", "li:nth-child(x)", "a,")) {
+			assertThrows(IllegalArgumentException.class, () -> Selector.compile(bad));
+		}
+	}
+
+	@Test
+	public void streaming_select() throws Exception {
+		byte[] bytes = Files.readAllBytes(Paths.get("src/test/java", this.getClass().getPackage().getName(), "spiegel.txt"));
+		String content = new String(bytes, StandardCharsets.ISO_8859_1);
+		DocNode doc = parse(content);
+
+		List<Selector> selectors = new ArrayList<>();
+		for (String css : asList("a", "div div > a[href]", ".nav-channel-sub a", "ul > li:nth-child(odd)", "#wirtschaft, form input", "*")) {
+			selectors.add(Selector.compile(css));
+		}
+		List<List<ElementNode>> expected = Selector.selectAll(doc, selectors.toArray(new Selector[0]));
+		List<List<ElementNode>> streamed = new HtmlParser(content).select(selectors.toArray(new Selector[0]));
+		for (int s = 0; s < selectors.size(); s++) {
+			assertThat(selectors.get(s).toString(), streamed.get(s).stream().map(e -> e.start() + "-" + e.end() + e.getAttributes()).collect(Collectors.toList()),
+					is(expected.get(s).stream().map(e -> e.start() + "-" + e.end() + e.getAttributes()).collect(Collectors.toList())));
+			assertThat(expected.get(s).isEmpty(), is(false));
+		}
+
+		List<ElementNode> prices = new HtmlParser("<div><div class=\"price x\"><b>1</b></div><p class=\"price\">2</p><div class=\"price\"/></div>")
+				.select(Selector.compile("div.price")).get(0);
+		assertThat(prices.size(), is(2));
+		assertThat(prices.get(0).getParent(), is((ElementNode) null));
+		assertThat(prices.get(0).getChildNodes().get(0).getTrimmedStringContent(), is("1"));
+		assertThat(prices.get(1).getChildren().isEmpty(), is(true));
+	}
+
+	@Test
+	public void lazy_parse() throws Exception {
+		byte[] bytes = Files.readAllBytes(Paths.get("src/test/java", this.getClass().getPackage().getName(), "spiegel.txt"));
+		String content = new String(bytes, StandardCharsets.ISO_8859_1);
+		assertThat(describe(new HtmlParser(content).parseLazy()), is(describe(parse(content))));
+
+		String text = "<!-- c --><a x=\"1\"> t <b/><!-- d --><c><d></d>u</c></a> <e></e></stray> <f></f>";
+		assertThat(describe(new HtmlParser(text).parseLazy()), is(describe(parse(text))));
+
+		ElementNode a = (ElementNode) new HtmlParser(text).parseLazy().getChildren().get(0);
+		assertThat(a.end(), is(text.indexOf("</a>") + 4));
+		assertThat(a.getChildNodes().get(1).getChildNodes().get(0).getTagName(), is("d"));
+		assertThat(a.getAttributeValue("x"), is("1"));
+
+		// changed lazy elements keep their tags and the comments around their children
+		String project = "<project>\n  <!-- a -->\n  <item x=\"1\">old</item>\n  <!-- b -->\n</project>";
+		DocNode lazy = new HtmlParser(project).parseLazy();
+		ElementNode item = ((ElementNode) lazy.getChildren().get(0)).getChildNodes().get(0);
+		item.setChildren(asList(TextNode.create("new")));
+		assertThat(new Serializer(project).toString(lazy), is(project.replace("old", "new")));
+		assertThat(item.getCloseTag().start(), is(project.indexOf("</item>")));
+
+		AssertionError error = assertThrows(AssertionError.class, () -> new HtmlParser("<a><b></a></b>").parseLazy());
+		assertThat(error.getMessage(), is("wrong close tag, expected 'b', but was 'a' at offset: 6"));
+	}
+
+	@Test
+	public void incremental_reparse() throws Exception {
+		String xml = "<dependencies>\n<dependency>\n<name>foo</name>\n<version>1</version>\n</dependency>\n" +
+				"<dependency>\n<name>bar</name>\n<version>2</version>\n</dependency>\n</dependencies>\n<!-- end -->";
+		DocNode doc = parse(xml);
+		ElementNode root = (ElementNode) doc.getChildren().get(0);
+		ElementNode foo = root.getChildNodes().get(0);
+		ElementNode bar = root.getChildNodes().get(1);
+		TextNode version = (TextNode) bar.getChildNodes().get(1).getChildren().get(0);
+
+		List<TextEdit> edits = asList(new TextEdit(version.start(), version.end(), "2.0.1"),
+				TextEdit.insert(bar.getChildNodes().get(1).end(), "<scope a=\"b\">test</scope>"));
+		String edited = TextEdit.apply(xml, edits);
+		DocNode updated = HtmlParser.reparse(doc, edited, edits);
+
+		assertThat(updated, is(doc));
+		// nodes before the edits slice from the swapped source and are not touched
+		assertThat(foo.getNameToken().src, is((CharSequence) doc.source));
+		assertThat(doc.source.toString(), is(edited));
+		assertThat(root.getChildNodes().get(0), is(foo));
+		assertThat(root.getChildNodes().get(1), is(bar));
+		assertThat(describe(updated), is(describe(parse(edited))));
+		assertThat(bar.getChildNodes().get(2).getAttributeValue("a"), is("b"));
+		assertThat(doc.getElementsByTagName("scope").size(), is(1));
+
+		// an edit around the start tag of an element reparses its parent
+		edits = asList(new TextEdit(edited.indexOf("<name>bar"), edited.indexOf("<name>bar") + 6, "<name x=\"1\">"));
+		String renamed = TextEdit.apply(edited, edits);
+		assertThat(describe(HtmlParser.reparse(doc, renamed, edits)), is(describe(parse(renamed))));
+
+		// nodes before the edit no longer read from the old source
+		StringBuilder buffer = new StringBuilder(renamed);
+		doc = new HtmlParser(buffer).parseDoc();
+		edits = asList(TextEdit.insert(renamed.indexOf("</version>"), ".1"));
+		String moved = TextEdit.apply(renamed, edits);
+		HtmlParser.reparse(doc, moved, edits);
+		buffer.setLength(0);
+		buffer.append(renamed.replaceAll("[a-z0-9]", "x"));
+		assertThat(describe(doc), is(describe(parse(moved))));
+
+		// top-level edits and edits breaking the structure get a full parse
+		edits = asList(TextEdit.insert(0, "<x/>"));
+		String top = TextEdit.apply(renamed, edits);
+		assertThat(describe(HtmlParser.reparse(parse(renamed), top, edits)), is(describe(parse(top))));
+
+		List<TextEdit> unbalanced = asList(TextEdit.delete(renamed.indexOf("</dependency>"), renamed.indexOf("</dependency>") + 13));
+		DocNode before = parse(renamed);
+		String after = TextEdit.apply(renamed, unbalanced);
+		AssertionError error = assertThrows(AssertionError.class, () -> HtmlParser.reparse(before, after, unbalanced));
+		assertThat(error.getMessage(), startsWith("wrong close tag, expected 'dependency', but was 'dependencies'"));
+	}
+
+	@Test
+	public void rewriter() throws Exception {
+		StringBuilder sb = new StringBuilder("<dependencies>\n");
+		for (int i = 0; i < 2000; i++) {
+			sb.append("<dependency a=\"x\" b><name>n").append(i).append("</name><version>").append(i).append("</version></dependency>\n");
+		}
+		String xml = sb.append("</dependencies>").toString();
+		DocNode doc = parse(xml);
+
+		Rewriter rewriter = new Rewriter(xml);
+		List<ElementNode> dependencies = doc.getElementsByTagName("dependency");
+		for (int i = dependencies.size() - 1; i >= 0; i--) {
+			ElementNode dependency = dependencies.get(i);
+			TextNode version = (TextNode) dependency.getChildNodes().get(1).getChildren().get(0);
+			rewriter.replace(version, String.valueOf(Integer.parseInt(version.trimmedString()) + 1));
+			if (i % 2 == 0) {
+				rewriter.remove(dependency.findAttribute("a"))
+						.insertAfter(dependency.getChildNodes().get(1), "<scope>test</scope>")
+						.insertAfter(dependency.getChildNodes().get(1), "\u00e4");
+			}
+		}
+		rewriter.insertBefore(doc.getChildren().get(0), "<!-- generated -->");
+
+		String rewritten = rewriter.rewrite();
+		assertThat(rewritten.startsWith("<!-- generated --><dependencies>\n<dependency  b><name>n0</name><version>1</version>" +
+				"<scope>test</scope>\u00e4</dependency>\n<dependency a=\"x\" b><name>n1</name><version>2</version></dependency>"), is(true));
+
+		StringWriter writer = new StringWriter();
+		rewriter.writeTo(writer);
+		assertThat(writer.toString(), is(rewritten));
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		rewriter.writeTo(Channels.newChannel(bytes), StandardCharsets.UTF_8);
+		assertThat(new String(bytes.toByteArray(), StandardCharsets.UTF_8), is(rewritten));
+
+		// one byte order mark for the whole output, pairs split between segments are joined
+		DocNode small = parse("<a>x</a><b>\ude00</b>");
+		bytes.reset();
+		new Rewriter("<a>x</a><b>\ude00</b>").replace(small.getElementsByTagName("a").get(0).getChildren().get(0), "y")
+				.insertBefore(small.getElementsByTagName("b").get(0).getChildren().get(0), "\ud83d")
+				.writeTo(Channels.newChannel(bytes), StandardCharsets.UTF_16);
+		assertThat(bytes.size(), is(2 + 2 * "<a>y</a><b>\ud83d\ude00</b>".length()));
+		assertThat(new String(bytes.toByteArray(), StandardCharsets.UTF_16), is("<a>y</a><b>\ud83d\ude00</b>"));
+
+		assertThat(describe(HtmlParser.reparse(doc, rewritten, rewriter.edits())), is(describe(parse(rewritten))));
+
+		Path file = Files.createTempFile("rewrite", ".xml");
+		try {
+			Files.write(file, "<a>\u00e4<b>x</b>\u00f6</a>".getBytes(StandardCharsets.UTF_8));
+			CharSequence mapped = HtmlParser.map(file);
+			ElementNode b = (ElementNode) ((ElementNode) new HtmlParser(mapped).parseDoc().getChildren().get(0)).getChildNodes().get(0);
+			bytes.reset();
+			new Rewriter(mapped).replace(b.getChildren().get(0), "\u00fc").writeTo(Channels.newChannel(bytes), StandardCharsets.UTF_8);
+			assertThat(new String(bytes.toByteArray(), StandardCharsets.UTF_8), is("<a>\u00e4<b>\u00fc</b>\u00f6</a>"));
+		} finally {
+			Files.delete(file);
+		}
+
+		// overlapping edits
+		Rewriter overlapping = new Rewriter(xml).remove(dependencies.get(0)).replace(dependencies.get(0).getChildNodes().get(0), "x");
+		assertThrows(IllegalArgumentException.class, overlapping::rewrite);
+	}
+
+	@Test
+	public void serializer() throws Exception {
+		byte[] bytes = Files.readAllBytes(Paths.get("src/test/java", this.getClass().getPackage().getName(), "spiegel.txt"));
+		String content = new String(bytes, StandardCharsets.ISO_8859_1);
+		Serializer serializer = new Serializer(content);
+		DocNode spiegel = parse(content);
+		assertThat(serializer.toString(spiegel), is(content));
+
+		// long spans of mapped and other sources are copied in chunks, without splitting encoded chars
+		StringBuilder large = new StringBuilder("<p title=\"x\">");
+		for (int i = 0; i < 30000; i++) {
+			large.append(i % 3 == 0 ? "\u00e4" : i % 3 == 1 ? "\u20ac" : "x");
+		}
+		large.append("</p>");
+		assertThat(new Serializer(large).toString(new HtmlParser(large).parseDoc()), is(large.toString()));
+		Path file = Files.createTempFile("serialize", ".html");
+		try {
+			Files.write(file, large.toString().getBytes(StandardCharsets.UTF_8));
+			CharSequence mapped = HtmlParser.map(file);
+			assertThat(new Serializer(mapped).toString(new HtmlParser(mapped).parseDoc()), is(large.toString()));
+		} finally {
+			Files.delete(file);
+		}
+
+		String text = "<?xml version=\"1.0\"?>\n<project>\n  <dependencies>\n    <dependency scope=\"a\"><version>1</version></dependency>\n" +
+				"    <empty x=\"1\"/>\n  </dependencies>\n  <!-- keep -->\n</project>";
+		DocNode doc = parse(text);
+		ElementNode version = doc.getElementsByTagName("version").get(0);
+		version.setChildren(asList(TextNode.create("2")));
+		ElementNode empty = doc.getElementsByTagName("empty").get(0);
+		ElementNode scope = ElementNode.create("scope", "a", "b", "flag", null);
+		scope.setChildren(asList(TextNode.create("test")));
+		empty.setChildren(asList(scope, ElementNode.create("br")));
+
+		String expected = "<?xml version=\"1.0\"?>\n<project>\n  <dependencies>\n    <dependency scope=\"a\"><version>2</version></dependency>\n" +
+				"    <empty x=\"1\"><scope a=\"b\" flag>test</scope><br/></empty>\n  </dependencies>\n  <!-- keep -->\n</project>";
+		assertThat(new Serializer(text).toString(doc), is(expected));
+		assertThat(empty.getChildNodes().get(0).getParent(), is(empty));
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new Serializer(text).write(doc, Channels.newChannel(out), StandardCharsets.UTF_8);
+		assertThat(new String(out.toByteArray(), StandardCharsets.UTF_8), is(expected));
+		StringWriter writer = new StringWriter();
+		new Serializer(text).write(version.getParent(), writer);
+		assertThat(writer.toString(), is("<dependency scope=\"a\"><version>2</version></dependency>"));
+
+		// a node inserted next to a comment keeps the comment
+		ElementNode project = doc.getElementsByTagName("project").get(0);
+		List<ASTNode> inserted = new ArrayList<>(project.getChildren());
+		inserted.add(inserted.size() - 1, ElementNode.create("new"));
+		project.setChildren(inserted);
+		assertThat(new Serializer(text).toString(doc), is(expected.replace("<!-- keep -->", "<!-- keep --><new/>")));
+		inserted.remove(inserted.size() - 2);
+		project.setChildren(inserted);
+
+		// removed nodes leave no trace, the comment around them stays
+		project.setChildren(project.getChildren().subList(2, project.getChildren().size()));
+		assertThat(new Serializer(text).toString(doc), is("<?xml version=\"1.0\"?>\n<project>\n  <!-- keep -->\n</project>"));
+	}
+
+	@Test
+	public void snapshot() throws Exception {
+		Path spiegelPath = Paths.get("src/test/java", this.getClass().getPackage().getName(), "spiegel.txt");
+		String content = new String(Files.readAllBytes(spiegelPath), StandardCharsets.ISO_8859_1);
+		DocNode parsed = parse(content);
+		Path file = Files.createTempFile("snapshot", ".bin");
+		try {
+			Snapshot.write(parsed, content, file);
+			Snapshot snapshot = Snapshot.load(file);
+			DocNode loaded = snapshot.getDocument();
+			assertThat(describe(loaded), is(describe(parsed)));
+			assertThat(snapshot.getSource().toString(), is(content));
+			assertThat(new Serializer(snapshot.getSource()).toString(loaded), is(content));
+			assertThat(loaded.getElementById("wirtschaft").start(), is(parsed.getElementById("wirtschaft").start()));
+
+			// loaded documents take a shared source on their first reparse
+			List<TextEdit> edits = asList(TextEdit.insert(loaded.getElementById("wirtschaft").contentStart(), "<i>x</i>"));
+			String edited = TextEdit.apply(content, edits);
+			assertThat(HtmlParser.reparse(loaded, edited, edits), is(loaded));
+			assertThat(describe(loaded), is(describe(parse(edited))));
+			assertThat(loaded.source.toString(), is(edited));
+
+			// byte offsets of a mapped file stay byte offsets
+			String text = "<a title=\"\u00e4\u00f6\"><b>\u00fc</b><br/></a>";
+			Files.write(file, text.getBytes(StandardCharsets.UTF_8));
+			HtmlParser parser = HtmlParser.mapFile(file);
+			DocNode mapped = parser.parseDoc();
+			Path copy = Files.createTempFile("snapshot", ".bin");
+			try {
+				Snapshot.write(mapped, HtmlParser.map(file), copy);
+				DocNode reloaded = Snapshot.load(copy).getDocument();
+				assertThat(describe(reloaded), is(describe(mapped)));
+				assertThat(reloaded.getElementsByTagName("b").get(0).getTrimmedStringContent(), is("\u00fc"));
+			} finally {
+				Files.delete(copy);
+			}
+
+			Files.write(file, new byte[]{1, 2, 3});
+			assertThat(assertThrows(IOException.class, () -> Snapshot.load(file)).getMessage(), startsWith("not a document snapshot"));
+
+			Snapshot.write(parse(HTML1), HTML1, file);
+			byte[] written = Files.readAllBytes(file);
+			Files.write(file, Arrays.copyOf(written, written.length - 2));
+			assertThat(assertThrows(IOException.class, () -> Snapshot.load(file)).getMessage(), startsWith("truncated or corrupt document snapshot"));
+			// the name of the first element points beyond the name table
+			ByteBuffer.wrap(written).putInt(4 * (8 + 4), 1000);
+			Files.write(file, written);
+			assertThat(assertThrows(IOException.class, () -> Snapshot.load(file)).getMessage(), startsWith("corrupt document snapshot"));
+
+			// children given to an empty element have no place in the source
+			String withEmpty = "<r><empty x=\"1\"/>text</r>";
+			DocNode changed = parse(withEmpty);
+			ElementNode r = changed.getElementsByTagName("r").get(0);
+			ElementNode empty = r.getChildNodes().get(0);
+			empty.setChildren(asList(r.getChildren().get(1)));
+			assertThrows(IllegalArgumentException.class, () -> Snapshot.write(changed, withEmpty, file));
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void parse_cache() throws Exception {
+		ParseCache cache = new ParseCache(1 << 20);
+		DocNode doc = cache.parse(HTML1);
+		assertThat(describe(doc), is(describe(parse(HTML1))));
+		assertThat(cache.parse(new StringBuilder(HTML1)) == doc, is(true));
+		assertThat(cache.stats().missCount(), is(1L));
+		assertThat(cache.stats().hitCount(), is(1L));
+
+		ElementNode element = doc.getElementsByTagName("foo").get(0);
+		assertThrows(UnsupportedOperationException.class, () -> element.setChildren(Collections.emptyList()));
+		assertThrows(UnsupportedOperationException.class, () -> element.getChildren().clear());
+		assertThrows(UnsupportedOperationException.class, () -> ElementNode.create("mine").setChildren(asList(element.getChildren().get(0))));
+		assertThat(element.getChildren().get(0).getParent(), is(element));
+		DocNode withAttributes = cache.parse("<a x=\"1\"></a>");
+		assertThrows(UnsupportedOperationException.class, () -> withAttributes.getElementsByTagName("a").get(0).getAttributes().clear());
+		assertThat(withAttributes.getElementsByTagName("a").get(0).getAttributeValue("x"), is("1"));
+		assertThrows(UnsupportedOperationException.class, () -> HtmlParser.reparse(doc, HTML1, asList(TextEdit.insert(0, " "))));
+
+		// documents beyond the bound are not kept
+		byte[] bytes = Files.readAllBytes(Paths.get("src/test/java", this.getClass().getPackage().getName(), "spiegel.txt"));
+		String content = new String(bytes, StandardCharsets.ISO_8859_1);
+		ParseCache small = new ParseCache(4096);
+		assertThat(small.parse(content).end(), is(parse(content).end()));
+		assertThat(small.size(), is(0L));
+		assertThat(small.stats().evictionCount(), is(1L));
+
+		assertThat(assertThrows(AssertionError.class, () -> cache.parse("<a></b>")).getMessage(), startsWith("wrong close tag"));
+	}
+
+	private List<String> describe(DocNode docNode) {
+		List<String> ret = new LinkedList<>();
+		docNode.accept(new HtmlVisitor() {
+			@Override
+			public void visitElement(ElementNode elementNode) {
+				ret.add(elementNode.getTagName() + elementNode.getAttributes() + "@" + elementNode.start() + "-" + elementNode.end()
+						+ " in " + (elementNode.getParent() == null ? null : elementNode.getParent().start()));
+			}
+
+			@Override
+			public void visitText(TextNode textNode) {
+				ret.add(textNode.trimmedString() + "@" + textNode.start() + " in " + (textNode.getParent() == null ? null : textNode.getParent().start()));
+			}
+		});
+		return ret;
+	}
+
 	@Test
 	public void spiegel() throws Exception {
 		byte[] bytes = Files.readAllBytes(Paths.get("src/test/java", this.getClass().getPackage().getName(), "spiegel.txt"));